@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.FilteringObjective;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.stratumproject.pipeconf.bcm.TrellisObjectives.DEVICE_ID;
+
+/**
+ * Throughput of the filtering objective translation for edge ports.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilteringObjectiveTranslatorBenchmark {
+
+    private static final int OBJECTIVES = 64;
+    private static final int MASK = OBJECTIVES - 1;
+
+    private FilteringObjectiveTranslator translator;
+    private TranslationContext ctx;
+    private final FilteringObjective[] portFilters = new FilteringObjective[OBJECTIVES];
+    private int index;
+
+    @Setup
+    public void setup() {
+        translator = new BcmTranslators(new BcmPipelineCapabilities(new StubPipeconf())).filtering();
+        ctx = new TranslationContext(DEVICE_ID, new BcmObjectiveStore(1, 60000, obj -> { }),
+                                     PuntQueueMapper.defaultMapper(), 0,
+                                     new SharedNextGroups(DEVICE_ID, true));
+        for (int i = 0; i < OBJECTIVES; i++) {
+            portFilters[i] = TrellisObjectives.portFilter(i + 1);
+        }
+    }
+
+    @Benchmark
+    public ObjectiveTranslation portFilter() {
+        return translator.translate(ctx, portFilters[index++ & MASK]);
+    }
+}
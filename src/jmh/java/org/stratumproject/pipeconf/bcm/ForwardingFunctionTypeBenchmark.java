@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the forwarding function type classification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardingFunctionTypeBenchmark {
+
+    private ForwardingObjective route;
+    private ForwardingObjective mplsRule;
+    private ForwardingObjective bridgingRule;
+    private ForwardingObjective broadcastRule;
+
+    @Setup
+    public void setup() {
+        route = TrellisObjectives.ipv4Route(1, 1);
+        mplsRule = TrellisObjectives.mplsSegmentRouting(101, 1);
+        bridgingRule = TrellisObjectives.l2Unicast(1, 2);
+        broadcastRule = TrellisObjectives.l2Broadcast(3);
+    }
+
+    @Benchmark
+    public ForwardingFunctionType ipv4Route() {
+        return ForwardingFunctionType.getForwardingFunctionType(route);
+    }
+
+    @Benchmark
+    public ForwardingFunctionType mplsSegmentRouting() {
+        return ForwardingFunctionType.getForwardingFunctionType(mplsRule);
+    }
+
+    @Benchmark
+    public ForwardingFunctionType l2Unicast() {
+        return ForwardingFunctionType.getForwardingFunctionType(bridgingRule);
+    }
+
+    @Benchmark
+    public ForwardingFunctionType l2Broadcast() {
+        return ForwardingFunctionType.getForwardingFunctionType(broadcastRule);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.stratumproject.pipeconf.bcm.TrellisObjectives.DEVICE_ID;
+
+/**
+ * Throughput of the forwarding objective translation, for routes, MPLS
+ * segment routing and bridging objectives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardingObjectiveTranslatorBenchmark {
+
+    // Objectives are cycled to avoid measuring a single, hot, objective.
+    private static final int OBJECTIVES = 1024;
+    private static final int MASK = OBJECTIVES - 1;
+    private static final int ECMP_NEXT_ID = 1;
+    private static final int BULK_SIZE = 64;
+
+    private ForwardingObjectiveTranslator translator;
+    private TranslationContext ctx;
+    private final ForwardingObjective[] routes = new ForwardingObjective[OBJECTIVES];
+    private final ForwardingObjective[] mplsRules = new ForwardingObjective[OBJECTIVES];
+    private final ForwardingObjective[] bridgingRules = new ForwardingObjective[OBJECTIVES];
+    private List<ForwardingObjective> routeBulk;
+    private int index;
+
+    @Setup
+    public void setup() {
+        final BcmObjectiveStore store = new BcmObjectiveStore(OBJECTIVES, 60000, obj -> { });
+        translator = new BcmTranslators(new BcmPipelineCapabilities(new StubPipeconf())).forwarding();
+        ctx = new TranslationContext(DEVICE_ID, store, PuntQueueMapper.defaultMapper(), 0,
+                                     new SharedNextGroups(DEVICE_ID, true));
+        store.putNextObjective(TrellisObjectives.ecmpNext(ECMP_NEXT_ID, 4, false));
+        for (int i = 0; i < OBJECTIVES; i++) {
+            final int hostNextId = ECMP_NEXT_ID + 1 + i;
+            store.putNextObjective(TrellisObjectives.simpleNext(hostNextId, 1 + i % 32));
+            routes[i] = TrellisObjectives.ipv4Route(i, ECMP_NEXT_ID);
+            mplsRules[i] = TrellisObjectives.mplsSegmentRouting(100 + i, ECMP_NEXT_ID);
+            bridgingRules[i] = TrellisObjectives.l2Unicast(i, hostNextId);
+        }
+        routeBulk = Arrays.asList(Arrays.copyOf(routes, BULK_SIZE));
+    }
+
+    @Benchmark
+    public ObjectiveTranslation ipv4Route() {
+        return translator.translate(ctx, routes[index++ & MASK]);
+    }
+
+    @Benchmark
+    public ObjectiveTranslation mplsSegmentRouting() {
+        return translator.translate(ctx, mplsRules[index++ & MASK]);
+    }
+
+    @Benchmark
+    public ObjectiveTranslation l2Unicast() {
+        return translator.translate(ctx, bridgingRules[index++ & MASK]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public List<ObjectiveTranslation> ipv4RouteBulk() {
+        return translator.translate(ctx, routeBulk);
+    }
+}
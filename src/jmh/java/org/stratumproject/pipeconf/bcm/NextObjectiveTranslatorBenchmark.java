@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.NextObjective;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.stratumproject.pipeconf.bcm.TrellisObjectives.DEVICE_ID;
+
+/**
+ * Throughput of the next objective translation, for ECMP groups of growing
+ * size and for simple next objectives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NextObjectiveTranslatorBenchmark {
+
+    private static final int OBJECTIVES = 256;
+    private static final int MASK = OBJECTIVES - 1;
+
+    @Param({"2", "4", "16", "64"})
+    private int buckets;
+
+    private NextObjectiveTranslator translator;
+    private TranslationContext ctx;
+    private final NextObjective[] ecmpNexts = new NextObjective[OBJECTIVES];
+    private final NextObjective[] mplsEcmpNexts = new NextObjective[OBJECTIVES];
+    private final NextObjective[] simpleNexts = new NextObjective[OBJECTIVES];
+    private int index;
+
+    @Setup
+    public void setup() {
+        final BcmObjectiveStore store = new BcmObjectiveStore(OBJECTIVES, 60000, obj -> { });
+        translator = new BcmTranslators(new BcmPipelineCapabilities(new StubPipeconf())).next();
+        ctx = new TranslationContext(DEVICE_ID, store, PuntQueueMapper.defaultMapper(), 0,
+                                     new SharedNextGroups(DEVICE_ID, true));
+        for (int i = 0; i < OBJECTIVES; i++) {
+            ecmpNexts[i] = TrellisObjectives.ecmpNext(i + 1, buckets, false);
+            mplsEcmpNexts[i] = TrellisObjectives.ecmpNext(OBJECTIVES + i + 1, buckets, true);
+            simpleNexts[i] = TrellisObjectives.simpleNext(2 * OBJECTIVES + i + 1, 1 + i % 32);
+        }
+    }
+
+    @Benchmark
+    public ObjectiveTranslation ecmpNext() {
+        return translator.translate(ctx, ecmpNexts[index++ & MASK]);
+    }
+
+    @Benchmark
+    public ObjectiveTranslation mplsEcmpNext() {
+        return translator.translate(ctx, mplsEcmpNexts[index++ & MASK]);
+    }
+
+    @Benchmark
+    public ObjectiveTranslation simpleNext() {
+        return translator.translate(ctx, simpleNexts[index++ & MASK]);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.driver.Behaviour;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiPipeconfId;
+import org.onosproject.net.pi.model.PiPipelineModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+
+/**
+ * Pipeconf used by the benchmarks, it only provides the CPU port extension
+ * and does not require the P4 compiler outputs.
+ */
+final class StubPipeconf implements PiPipeconf {
+
+    private static final PiPipeconfId ID = new PiPipeconfId("org.stratumproject.bcm.benchmark");
+    private static final String CPU_PORT = "253";
+
+    @Override
+    public PiPipeconfId id() {
+        return ID;
+    }
+
+    @Override
+    public PiPipelineModel pipelineModel() {
+        return null;
+    }
+
+    @Override
+    public long fingerprint() {
+        return ID.hashCode();
+    }
+
+    @Override
+    public Collection<Class<? extends Behaviour>> behaviours() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Optional<Class<? extends Behaviour>> implementation(Class<? extends Behaviour> behaviour) {
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean hasBehaviour(Class<? extends Behaviour> behaviourClass) {
+        return false;
+    }
+
+    @Override
+    public Optional<InputStream> extension(ExtensionType type) {
+        if (type == ExtensionType.CPU_PORT_TXT) {
+            return Optional.of(new ByteArrayInputStream(CPU_PORT.getBytes(StandardCharsets.UTF_8)));
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.Ip4Prefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.MplsLabel;
+import org.onlab.packet.VlanId;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criteria;
+import org.onosproject.net.flowobjective.DefaultFilteringObjective;
+import org.onosproject.net.flowobjective.DefaultForwardingObjective;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+
+/**
+ * Factory of objectives similar to the ones generated by Trellis
+ * (segmentrouting) for a leaf switch.
+ */
+final class TrellisObjectives {
+
+    static final DeviceId DEVICE_ID = DeviceId.deviceId("device:leaf-1");
+    static final ApplicationId APP_ID = new DefaultApplicationId(1, "org.onosproject.segmentrouting");
+    static final MacAddress ROUTER_MAC = MacAddress.valueOf("00:00:00:00:02:01");
+    static final VlanId INTERNAL_VLAN = VlanId.vlanId((short) 4094);
+
+    private static final int ROUTE_PRIORITY = 3000;
+    private static final int MPLS_PRIORITY = 100;
+    private static final int BRIDGING_PRIORITY = 100;
+    private static final int FILTER_PRIORITY = 10;
+
+    private TrellisObjectives() {
+    }
+
+    /**
+     * Returns an IPv4 route, /24 prefixes are derived from the given index.
+     *
+     * @param index  route index
+     * @param nextId ID of the ECMP next objective
+     * @return forwarding objective
+     */
+    static ForwardingObjective ipv4Route(int index, int nextId) {
+        final Ip4Prefix prefix = Ip4Prefix.valueOf(Ip4Address.valueOf(0x0A000000 + (index << 8)), 24);
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchEthType(Ethernet.TYPE_IPV4)
+                                      .matchIPDst(prefix)
+                                      .build())
+                .withFlag(ForwardingObjective.Flag.SPECIFIC)
+                .nextStep(nextId)
+                .withPriority(ROUTE_PRIORITY)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add();
+    }
+
+    /**
+     * Returns an MPLS segment routing objective for the given label.
+     *
+     * @param label  MPLS label
+     * @param nextId ID of the ECMP next objective
+     * @return forwarding objective
+     */
+    static ForwardingObjective mplsSegmentRouting(int label, int nextId) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchEthType(Ethernet.MPLS_UNICAST)
+                                      .matchMplsLabel(MplsLabel.mplsLabel(label))
+                                      .matchMplsBos(true)
+                                      .build())
+                .withFlag(ForwardingObjective.Flag.SPECIFIC)
+                .nextStep(nextId)
+                .withPriority(MPLS_PRIORITY)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add();
+    }
+
+    /**
+     * Returns a bridging objective for the given host index.
+     *
+     * @param index  host index
+     * @param nextId ID of the simple next objective of the host port
+     * @return forwarding objective
+     */
+    static ForwardingObjective l2Unicast(int index, int nextId) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchVlanId(INTERNAL_VLAN)
+                                      .matchEthDst(hostMac(index))
+                                      .build())
+                .withFlag(ForwardingObjective.Flag.SPECIFIC)
+                .nextStep(nextId)
+                .withPriority(BRIDGING_PRIORITY)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add();
+    }
+
+    /**
+     * Returns a broadcast objective for the internal VLAN.
+     *
+     * @param nextId ID of the broadcast next objective
+     * @return forwarding objective
+     */
+    static ForwardingObjective l2Broadcast(int nextId) {
+        return DefaultForwardingObjective.builder()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchVlanId(INTERNAL_VLAN)
+                                      .build())
+                .withFlag(ForwardingObjective.Flag.SPECIFIC)
+                .nextStep(nextId)
+                .withPriority(BRIDGING_PRIORITY)
+                .fromApp(APP_ID)
+                .makePermanent()
+                .add();
+    }
+
+    /**
+     * Returns an ECMP next objective towards the given number of spines.
+     *
+     * @param nextId  next objective ID
+     * @param buckets number of buckets
+     * @param mplsPush true to push an MPLS label, as for SR tunnels
+     * @return next objective
+     */
+    static NextObjective ecmpNext(int nextId, int buckets, boolean mplsPush) {
+        final DefaultNextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(nextId)
+                .withType(NextObjective.Type.HASHED)
+                .withMeta(DefaultTrafficSelector.builder()
+                                  .matchVlanId(INTERNAL_VLAN)
+                                  .build())
+                .fromApp(APP_ID);
+        for (int i = 0; i < buckets; i++) {
+            final TrafficTreatment.Builder treatment = DefaultTrafficTreatment.builder()
+                    .setEthSrc(ROUTER_MAC)
+                    .setEthDst(spineMac(i));
+            if (mplsPush) {
+                treatment.pushMpls().copyTtlOut().setMpls(MplsLabel.mplsLabel(100 + i));
+            }
+            builder.addTreatment(treatment.setOutput(PortNumber.portNumber(i + 1)).build());
+        }
+        return builder.add();
+    }
+
+    /**
+     * Returns a simple next objective towards the given host port.
+     *
+     * @param nextId next objective ID
+     * @param port   output port
+     * @return next objective
+     */
+    static NextObjective simpleNext(int nextId, long port) {
+        return DefaultNextObjective.builder()
+                .withId(nextId)
+                .withType(NextObjective.Type.SIMPLE)
+                .withMeta(DefaultTrafficSelector.builder()
+                                  .matchVlanId(INTERNAL_VLAN)
+                                  .build())
+                .addTreatment(DefaultTrafficTreatment.builder()
+                                      .popVlan()
+                                      .setOutput(PortNumber.portNumber(port))
+                                      .build())
+                .fromApp(APP_ID)
+                .add();
+    }
+
+    /**
+     * Returns the filtering objective of the given edge port.
+     *
+     * @param port input port
+     * @return filtering objective
+     */
+    static FilteringObjective portFilter(long port) {
+        return DefaultFilteringObjective.builder()
+                .withKey(Criteria.matchInPort(PortNumber.portNumber(port)))
+                .addCondition(Criteria.matchEthDst(ROUTER_MAC))
+                .addCondition(Criteria.matchVlanId(VlanId.NONE))
+                .withMeta(DefaultTrafficTreatment.builder()
+                                  .pushVlan()
+                                  .setVlanId(INTERNAL_VLAN)
+                                  .build())
+                .withPriority(FILTER_PRIORITY)
+                .fromApp(APP_ID)
+                .permit()
+                .add();
+    }
+
+    private static MacAddress hostMac(int index) {
+        return MacAddress.valueOf(0x0000AA0000000000L + index);
+    }
+
+    private static MacAddress spineMac(int index) {
+        return MacAddress.valueOf(0x0000BB0000000000L + index);
+    }
+}
@@ -6,7 +6,8 @@
 
 package org.stratumproject.pipeconf.bcm;
 
-import org.onosproject.net.DeviceId;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flowobjective.Objective;
@@ -16,30 +17,40 @@ import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.slf4j.Logger;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
  * Abstract implementation of a ObjectiveTranslator logic for the BCM pipeconf.
+ * Translators are shared by the devices using the same pipeconf, state of a
+ * device is given with each translation as a {@link TranslationContext}.
  */
 abstract class AbstractObjectiveTranslator<T extends Objective> {
 
     protected final Logger log = getLogger(this.getClass());
 
-    protected final DeviceId deviceId;
     protected final BcmPipelineCapabilities capabilities;
     protected final PiPipelineInterpreter interpreter;
 
-    AbstractObjectiveTranslator(DeviceId deviceId, BcmPipelineCapabilities capabilities) {
-        this.deviceId = checkNotNull(deviceId);
+    // Lookups shared by the objectives of a bulk translation, set only while
+    // a bulk translation is in progress on the current thread.
+    private final ThreadLocal<Map<Object, Object>> bulkLookups = new ThreadLocal<>();
+
+    AbstractObjectiveTranslator(BcmPipelineCapabilities capabilities,
+                                PiPipelineInterpreter interpreter) {
         this.capabilities = capabilities;
-        this.interpreter = new BcmPipelineInterpreter(capabilities);
+        this.interpreter = checkNotNull(interpreter);
     }
 
-    public ObjectiveTranslation translate(T obj) {
+    public ObjectiveTranslation translate(TranslationContext ctx, T obj) {
         try {
-            return doTranslate(obj);
+            return doTranslate(ctx, obj);
         } catch (BcmPipelinerException e) {
             log.warn("Cannot translate {}: {} [{}]",
                      obj.getClass().getSimpleName(), e.getMessage(), obj);
@@ -47,16 +58,55 @@ abstract class AbstractObjectiveTranslator<T extends Objective> {
         }
     }
 
-    public abstract ObjectiveTranslation doTranslate(T obj)
+    /**
+     * Translates the given objectives as one unit, sharing treatment and
+     * group lookups among them. Each objective is translated independently,
+     * so that the failure of one does not affect the others.
+     *
+     * @param ctx  translation context of the device
+     * @param objs objectives
+     * @return translations, in the same order as the given objectives
+     */
+    public List<ObjectiveTranslation> translate(TranslationContext ctx, List<T> objs) {
+        final List<ObjectiveTranslation> results = Lists.newArrayListWithCapacity(objs.size());
+        bulkLookups.set(Maps.newHashMap());
+        try {
+            objs.forEach(obj -> results.add(translate(ctx, obj)));
+        } finally {
+            bulkLookups.remove();
+        }
+        return results;
+    }
+
+    public abstract ObjectiveTranslation doTranslate(TranslationContext ctx, T obj)
             throws BcmPipelinerException;
 
-    public FlowRule flowRule(T obj, PiTableId tableId, TrafficSelector selector,
-                             TrafficTreatment treatment)
+    /**
+     * Returns the value for the given key, computing it only once per bulk
+     * translation. Outside of a bulk translation the value is always computed.
+     *
+     * @param key    lookup key
+     * @param loader function computing the value
+     * @param <K>    type of key
+     * @param <V>    type of value
+     * @return value
+     */
+    @SuppressWarnings("unchecked")
+    <K, V> V bulkLookup(K key, Function<K, V> loader) {
+        final Map<Object, Object> lookups = bulkLookups.get();
+        if (lookups == null) {
+            return loader.apply(key);
+        }
+        return (V) lookups.computeIfAbsent(key, k -> loader.apply(key));
+    }
+
+    public FlowRule flowRule(TranslationContext ctx, T obj, PiTableId tableId,
+                             TrafficSelector selector, TrafficTreatment treatment)
             throws BcmPipelinerException {
-        return flowRule(obj, tableId, selector, treatment, obj.priority());
+        return flowRule(ctx, obj, tableId, selector, treatment, obj.priority());
     }
 
-    public FlowRule flowRule(T obj, PiTableId tableId, TrafficSelector selector,
+    public FlowRule flowRule(TranslationContext ctx, T obj, PiTableId tableId, TrafficSelector selector,
                              TrafficTreatment treatment, Integer priority)
             throws BcmPipelinerException {
         return DefaultFlowRule.builder()
@@ -65,7 +115,7 @@ abstract class AbstractObjectiveTranslator<T extends Objective> {
                 .forTable(tableId)
                 .makePermanent()
                 .withPriority(priority)
-                .forDevice(deviceId)
+                .forDevice(ctx.deviceId())
                 .fromApp(obj.appId())
                 .build();
     }
@@ -75,6 +125,12 @@ abstract class AbstractObjectiveTranslator<T extends Objective> {
         if (isTreatmentPi(treatment)) {
             return treatment;
         }
+        final Map<Object, Object> lookups = bulkLookups.get();
+        final TreatmentLookupKey key = lookups == null ? null
+                : new TreatmentLookupKey(treatment, tableId);
+        if (key != null && lookups.containsKey(key)) {
+            return (TrafficTreatment) lookups.get(key);
+        }
         final PiAction piAction;
         try {
             piAction = interpreter.mapTreatment(treatment, tableId);
@@ -84,13 +140,49 @@ abstract class AbstractObjectiveTranslator<T extends Objective> {
                            tableId, ex.getMessage()),
                     ObjectiveError.UNSUPPORTED);
         }
-        return DefaultTrafficTreatment.builder()
+        final TrafficTreatment piTreatment = DefaultTrafficTreatment.builder()
                 .piTableAction(piAction)
                 .build();
+        if (key != null) {
+            lookups.put(key, piTreatment);
+        }
+        return piTreatment;
     }
 
     private boolean isTreatmentPi(TrafficTreatment treatment) {
         return treatment.allInstructions().size() == 1
                 && treatment.allInstructions().get(0).type() == Instruction.Type.PROTOCOL_INDEPENDENT;
     }
+
+    /**
+     * Key of a treatment mapping shared during a bulk translation.
+     */
+    private static final class TreatmentLookupKey {
+
+        private final TrafficTreatment treatment;
+        private final PiTableId tableId;
+
+        private TreatmentLookupKey(TrafficTreatment treatment, PiTableId tableId) {
+            this.treatment = treatment;
+            this.tableId = tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(treatment, tableId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final TreatmentLookupKey other = (TreatmentLookupKey) obj;
+            return Objects.equals(this.treatment, other.treatment)
+                    && Objects.equals(this.tableId, other.tableId);
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import org.onlab.packet.MacAddress;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+
+import java.util.Objects;
+
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.DEFATUL_MPLS_TTL;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.DMAC;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.DST_VLAN;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.L2_FWD_SET_EGRESS_PORT;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.L3_FWD_DECAP_MPLS;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.L3_FWD_ENCAP_MPLS;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.L3_FWD_SET_NEXTHOP;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.L3_FWD_SWAP_MPLS;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.MPLS_LABEL;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.PORT;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.SMAC;
+
+/**
+ * Bounded cache interning the forwarding actions built by the interpreter.
+ * Many next objectives and routes share the same next hops, this avoids
+ * building the same actions and their parameters over and over, and lets
+ * installed flow rules and groups share the same action instances.
+ * Actions do not depend on the device, the cache is shared by all devices.
+ */
+public final class BcmActionCache {
+
+    private static final int MAX_SIZE = 65536;
+
+    private static final LoadingCache<ActionKey, PiAction> ACTIONS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .recordStats()
+            .build(new CacheLoader<ActionKey, PiAction>() {
+                @Override
+                public PiAction load(ActionKey key) {
+                    return key.build();
+                }
+            });
+
+    private BcmActionCache() {
+        // Hide constructor.
+    }
+
+    /**
+     * Returns the action setting the egress port of bridged packets.
+     *
+     * @param port egress port
+     * @return action
+     */
+    static PiAction l2EgressPort(long port) {
+        return ACTIONS.getUnchecked(new ActionKey(L2_FWD_SET_EGRESS_PORT, port, 0, 0, 0, (short) 0));
+    }
+
+    /**
+     * Returns the action setting the next hop of routed packets.
+     *
+     * @param port egress port
+     * @param smac source MAC address
+     * @param dmac destination MAC address
+     * @param vlan egress VLAN ID
+     * @return action
+     */
+    static PiAction setNextHop(long port, MacAddress smac, MacAddress dmac, short vlan) {
+        return ACTIONS.getUnchecked(new ActionKey(
+                L3_FWD_SET_NEXTHOP, port, smac.toLong(), dmac.toLong(), 0, vlan));
+    }
+
+    /**
+     * Returns the action pushing an MPLS label on routed packets.
+     *
+     * @param port  egress port
+     * @param smac  source MAC address
+     * @param dmac  destination MAC address
+     * @param label MPLS label
+     * @return action
+     */
+    static PiAction encapMpls(long port, MacAddress smac, MacAddress dmac, int label) {
+        return ACTIONS.getUnchecked(new ActionKey(
+                L3_FWD_ENCAP_MPLS, port, smac.toLong(), dmac.toLong(), label, (short) 0));
+    }
+
+    /**
+     * Returns the action swapping the MPLS label of packets.
+     *
+     * @param port  egress port
+     * @param smac  source MAC address
+     * @param dmac  destination MAC address
+     * @param label MPLS label
+     * @return action
+     */
+    static PiAction swapMpls(long port, MacAddress smac, MacAddress dmac, int label) {
+        return ACTIONS.getUnchecked(new ActionKey(
+                L3_FWD_SWAP_MPLS, port, smac.toLong(), dmac.toLong(), label, (short) 0));
+    }
+
+    /**
+     * Returns the action popping the MPLS label of packets.
+     *
+     * @param port egress port
+     * @param smac source MAC address
+     * @param dmac destination MAC address
+     * @return action
+     */
+    static PiAction decapMpls(long port, MacAddress smac, MacAddress dmac) {
+        return ACTIONS.getUnchecked(new ActionKey(
+                L3_FWD_DECAP_MPLS, port, smac.toLong(), dmac.toLong(), 0, (short) 0));
+    }
+
+    /**
+     * Returns the hit and miss statistics of the cache.
+     *
+     * @return cache statistics
+     */
+    public static CacheStats stats() {
+        return ACTIONS.stats();
+    }
+
+    /**
+     * Returns the number of cached actions.
+     *
+     * @return number of actions
+     */
+    public static long size() {
+        return ACTIONS.size();
+    }
+
+    /**
+     * Removes all cached actions.
+     */
+    static void clear() {
+        ACTIONS.invalidateAll();
+    }
+
+    /**
+     * Fields of a forwarding action, unused fields are zero.
+     */
+    private static final class ActionKey {
+
+        private final PiActionId actionId;
+        private final long port;
+        private final long smac;
+        private final long dmac;
+        private final int mplsLabel;
+        private final short vlan;
+
+        private ActionKey(PiActionId actionId, long port, long smac, long dmac, int mplsLabel, short vlan) {
+            this.actionId = actionId;
+            this.port = port;
+            this.smac = smac;
+            this.dmac = dmac;
+            this.mplsLabel = mplsLabel;
+            this.vlan = vlan;
+        }
+
+        private PiAction build() {
+            final PiAction.Builder builder = PiAction.builder()
+                    .withId(actionId)
+                    .withParameter(new PiActionParam(PORT, port));
+            if (actionId.equals(L2_FWD_SET_EGRESS_PORT)) {
+                return builder.build();
+            }
+            builder.withParameter(new PiActionParam(SMAC, MacAddress.valueOf(smac).toBytes()))
+                    .withParameter(new PiActionParam(DMAC, MacAddress.valueOf(dmac).toBytes()));
+            if (actionId.equals(L3_FWD_SET_NEXTHOP)) {
+                builder.withParameter(new PiActionParam(DST_VLAN, vlan));
+            } else if (actionId.equals(L3_FWD_ENCAP_MPLS)) {
+                builder.withParameter(new PiActionParam(MPLS_LABEL, mplsLabel))
+                        .withParameter(DEFATUL_MPLS_TTL);
+            } else if (actionId.equals(L3_FWD_SWAP_MPLS)) {
+                builder.withParameter(new PiActionParam(MPLS_LABEL, mplsLabel));
+            }
+            return builder.build();
+        }
+
+        @Override
+        public int hashCode() {
+            int result = actionId.hashCode();
+            result = 31 * result + Long.hashCode(port);
+            result = 31 * result + Long.hashCode(smac);
+            result = 31 * result + Long.hashCode(dmac);
+            result = 31 * result + mplsLabel;
+            return 31 * result + vlan;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final ActionKey other = (ActionKey) obj;
+            return port == other.port
+                    && smac == other.smac
+                    && dmac == other.dmac
+                    && mplsLabel == other.mplsLabel
+                    && vlan == other.vlan
+                    && Objects.equals(actionId, other.actionId);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("actionId", actionId)
+                    .add("port", port)
+                    .add("smac", MacAddress.valueOf(smac))
+                    .add("dmac", MacAddress.valueOf(dmac))
+                    .add("mplsLabel", mplsLabel)
+                    .add("vlan", vlan)
+                    .toString();
+        }
+    }
+}
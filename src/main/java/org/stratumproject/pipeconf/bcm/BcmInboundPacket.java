@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.base.MoreObjects;
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.packet.InboundPacket;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Inbound packet backed by the payload of a packet-in, without copying it.
+ * The payload is copied and the Ethernet packet parsed only when first
+ * requested, both are then kept, including a parsing failure.
+ */
+final class BcmInboundPacket implements InboundPacket {
+
+    private static final Logger log = getLogger(BcmInboundPacket.class);
+
+    // Parsed packet of a malformed payload, never returned.
+    private static final Ethernet MALFORMED = new Ethernet();
+
+    private final ConnectPoint receivedFrom;
+    private final ImmutableByteSequence data;
+    // Lazily copied and parsed, null until requested.
+    private volatile byte[] payload;
+    private volatile Ethernet parsed;
+
+    /**
+     * Creates a new inbound packet.
+     *
+     * @param receivedFrom connect point where the packet was received
+     * @param data         packet payload
+     */
+    BcmInboundPacket(ConnectPoint receivedFrom, ImmutableByteSequence data) {
+        this.receivedFrom = checkNotNull(receivedFrom);
+        this.data = checkNotNull(data);
+    }
+
+    @Override
+    public ConnectPoint receivedFrom() {
+        return receivedFrom;
+    }
+
+    /**
+     * Returns the parsed Ethernet packet, parsing the payload on first
+     * invocation.
+     *
+     * @return parsed packet, or null if the payload is not a valid Ethernet
+     * packet
+     */
+    @Override
+    public Ethernet parsed() {
+        Ethernet eth = parsed;
+        if (eth == null) {
+            final byte[] bytes = payload();
+            try {
+                eth = Ethernet.deserializer().deserialize(bytes, 0, bytes.length);
+            } catch (DeserializationException | RuntimeException e) {
+                // Malformed packets can also fail with buffer underflows.
+                log.debug("Unable to parse packet-in received from {}: {}", receivedFrom, e.getMessage());
+                eth = MALFORMED;
+            }
+            // Benign race, at worst the packet is parsed more than once.
+            parsed = eth;
+        }
+        return eth == MALFORMED ? null : eth;
+    }
+
+    /**
+     * Returns the payload, backed by an array as expected by packet
+     * processors, copied on first invocation.
+     *
+     * @return payload
+     */
+    @Override
+    public ByteBuffer unparsed() {
+        return ByteBuffer.wrap(payload());
+    }
+
+    private byte[] payload() {
+        byte[] bytes = payload;
+        if (bytes == null) {
+            // Benign race, at worst the payload is copied more than once.
+            bytes = data.asArray();
+            payload = bytes;
+        }
+        return bytes;
+    }
+
+    @Override
+    public Optional<Long> cookie() {
+        return Optional.empty();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(receivedFrom, data);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final BcmInboundPacket other = (BcmInboundPacket) obj;
+        return Objects.equals(this.receivedFrom, other.receivedFrom)
+                && Objects.equals(this.data, other.data);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("length", data.size())
+                .toString();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.onlab.util.Tools.groupedThreads;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Executor of objective translation tasks. Tasks submitted with the same key
+ * are executed in submission order by the same worker, while tasks with
+ * different keys can be executed in parallel by different workers. Each
+ * worker has a bounded queue, when it is full tasks are rejected once the
+ * caller has waited for the given time, possibly none, and callers must
+ * fail the objectives of rejected tasks.
+ */
+final class BcmObjectiveExecutor {
+
+    private static final Logger log = getLogger(BcmObjectiveExecutor.class);
+
+    private static final int DEFAULT_WORKERS =
+            Math.max(4, Runtime.getRuntime().availableProcessors());
+    // Large enough for the objectives of a fabric-wide reroute.
+    static final int DEFAULT_QUEUE_CAPACITY = 50000;
+
+    private static volatile BcmObjectiveExecutor shared;
+    // Largest capacity requested by the pipeliners, kept across shutdowns.
+    private static int sharedQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private final ThreadPoolExecutor[] workers;
+    // Tasks queued or running per worker, the queues themselves are
+    // unbounded so that the capacity can be raised.
+    private final Semaphore[] permits;
+    private int queueCapacity;
+
+    /**
+     * Creates a new executor.
+     *
+     * @param numWorkers    number of workers
+     * @param queueCapacity maximum number of tasks queued per worker
+     */
+    BcmObjectiveExecutor(int numWorkers, int queueCapacity) {
+        checkArgument(numWorkers > 0, "Number of workers must be positive");
+        checkArgument(queueCapacity > 0, "Queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+        this.workers = new ThreadPoolExecutor[numWorkers];
+        this.permits = new Semaphore[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = new ThreadPoolExecutor(
+                    1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    groupedThreads("onos/bcm-pipeliner", "objective-worker-" + i + "-%d", log));
+            permits[i] = new Semaphore(queueCapacity);
+        }
+    }
+
+    /**
+     * Returns the executor shared by all BCM pipeliners, creating it if
+     * needed. Callers must not keep it, a new one is created after a
+     * shutdown, see {@link #shutdownShared()}.
+     *
+     * @return shared executor
+     */
+    static BcmObjectiveExecutor shared() {
+        final BcmObjectiveExecutor executor = shared;
+        return executor != null ? executor : createShared();
+    }
+
+    private static synchronized BcmObjectiveExecutor createShared() {
+        if (shared == null) {
+            shared = new BcmObjectiveExecutor(DEFAULT_WORKERS, sharedQueueCapacity);
+        }
+        return shared;
+    }
+
+    /**
+     * Raises the queue capacity of the executor shared by all BCM
+     * pipeliners to the given one, if larger. As the executor is shared,
+     * the largest capacity requested applies to all devices.
+     *
+     * @param queueCapacity maximum number of tasks queued per worker
+     */
+    static synchronized void requestSharedQueueCapacity(int queueCapacity) {
+        checkArgument(queueCapacity > 0, "Queue capacity must be positive");
+        sharedQueueCapacity = Math.max(sharedQueueCapacity, queueCapacity);
+        if (shared != null) {
+            shared.raiseQueueCapacity(sharedQueueCapacity);
+        }
+    }
+
+    /**
+     * Shuts down the executor shared by all BCM pipeliners, if any.
+     */
+    static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.shutdown();
+            shared = null;
+        }
+    }
+
+    /**
+     * Submits a task for execution after all tasks previously submitted with
+     * the same key.
+     *
+     * @param key  ordering key
+     * @param task task
+     * @return true if the task was accepted, false if the queue of the worker
+     * is full or the executor has been shut down
+     */
+    boolean execute(int key, Runnable task) {
+        return execute(key, task, 0);
+    }
+
+    /**
+     * Submits a task for execution after all tasks previously submitted with
+     * the same key, waiting up to the given time for the queue of the worker
+     * to have room.
+     *
+     * @param key        ordering key
+     * @param task       task
+     * @param waitMillis maximum time to wait when the queue is full
+     * @return true if the task was accepted, false if the queue of the worker
+     * is still full after the wait or the executor has been shut down
+     */
+    boolean execute(int key, Runnable task, long waitMillis) {
+        final int index = workerIndex(key);
+        try {
+            if (!permits[index].tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            workers[index].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits[index].release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            permits[index].release();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed, across all workers.
+     *
+     * @return queue depth
+     */
+    int queueDepth() {
+        return Arrays.stream(workers).mapToInt(w -> w.getQueue().size()).sum();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed by the worker in
+     * charge of the given key.
+     *
+     * @param key ordering key
+     * @return queue depth
+     */
+    int queueDepth(int key) {
+        return workers[workerIndex(key)].getQueue().size();
+    }
+
+    /**
+     * Returns the maximum number of tasks that can be queued per worker.
+     *
+     * @return queue capacity
+     */
+    synchronized int queueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Raises the maximum number of tasks that can be queued per worker to
+     * the given one, if larger.
+     *
+     * @param capacity queue capacity
+     */
+    synchronized void raiseQueueCapacity(int capacity) {
+        if (capacity > queueCapacity) {
+            Arrays.stream(permits).forEach(p -> p.release(capacity - queueCapacity));
+            queueCapacity = capacity;
+        }
+    }
+
+    /**
+     * Shuts down this executor. Tasks already queued are still executed.
+     */
+    void shutdown() {
+        Arrays.stream(workers).forEach(ThreadPoolExecutor::shutdown);
+    }
+
+    /**
+     * Returns the index of the worker in charge of the given key.
+     *
+     * @param key ordering key
+     * @return worker index
+     */
+    int workerIndex(int key) {
+        // Spread the key bits, nextIds are usually allocated sequentially.
+        final int hash = key ^ (key >>> 16);
+        return Math.floorMod(hash * 0x9E3779B9, workers.length);
+    }
+}
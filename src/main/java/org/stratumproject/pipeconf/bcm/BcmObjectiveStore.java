@@ -6,30 +6,131 @@
 
 package org.stratumproject.pipeconf.bcm;
 
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
+import org.slf4j.Logger;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
 
 /**
- * Local cache which stores NextObjectives and ForwardingObjectives.
+ * Local cache which stores NextObjectives and ForwardingObjectives. This
+ * implementation is thread-safe.
+ * <p>
+ * The flow rules installed for each forwarding objective are memoized once
+ * confirmed, so that they can be removed without translating the objective
+ * again, or rewritten when the group of their next objective changes.
+ * <p>
+ * Forwarding objectives waiting for their next objective are parked in a
+ * bounded area. Each parked objective has a deadline, once expired (or when
+ * evicted to make room for new ones) it is handed to the eviction handler.
  */
 public class BcmObjectiveStore {
-    private Multimap<Integer, ForwardingObjective> nextIdToFwdObjectives;
-    private Map<Integer, NextObjective> nextObjectives;
 
-    public BcmObjectiveStore() {
-        nextIdToFwdObjectives = HashMultimap.create();
-        nextObjectives = Maps.newHashMap();
+    private static final Logger log = getLogger(BcmObjectiveStore.class);
+
+    // Rough heap usage of the parts of a parked forwarding objective, used
+    // to estimate the memory of the parking area from its content.
+    private static final int PARKED_OBJECTIVE_BYTES = 256;
+    private static final int CRITERION_BYTES = 64;
+    private static final int INSTRUCTION_BYTES = 64;
+    // Upper bounds (in ms) of the parked objective age histogram.
+    private static final long[] AGE_HISTOGRAM_BOUNDS = {1000, 5000, 10000, 30000, 60000, Long.MAX_VALUE};
+
+    // Keyed by nextId, primitive keys avoid boxing on the hot path.
+    private final ConcurrentIntObjectMap<NextObjective> nextObjectives;
+    private final ConcurrentMap<ForwardingKey, InstalledFlowRules> forwardingFlowRules =
+            Maps.newConcurrentMap();
+    // Forwarding objectives with installed flow rules, by nextId.
+    private final ConcurrentIntObjectMap<Set<ForwardingKey>> forwardingKeysByNextId =
+            new ConcurrentIntObjectMap<>();
+
+    // Parking area, guarded by this. Equal objectives are parked once.
+    private final ConcurrentIntObjectMap<Map<ForwardingObjective, ParkedObjective>> parkedByNextId =
+            new ConcurrentIntObjectMap<>(1);
+    // All parked objectives, oldest first.
+    private final Set<ParkedObjective> parkingOrder = Sets.newLinkedHashSet();
+    private long parkedBytes;
+    private ScheduledFuture<?> expiryTask;
+
+    private final int maxParked;
+    private final long parkTimeoutMillis;
+    private final Consumer<ForwardingObjective> evictionHandler;
+
+    /**
+     * Creates a new store.
+     *
+     * @param maxParked         maximum number of parked forwarding objectives
+     * @param parkTimeoutMillis time after which a parked objective is evicted
+     * @param evictionHandler   handler of evicted forwarding objectives
+     */
+    public BcmObjectiveStore(int maxParked, long parkTimeoutMillis,
+                             Consumer<ForwardingObjective> evictionHandler) {
+        checkArgument(maxParked > 0, "Maximum number of parked objectives must be positive");
+        checkArgument(parkTimeoutMillis > 0, "Parking timeout must be positive");
+        this.nextObjectives = new ConcurrentIntObjectMap<>();
+        this.maxParked = maxParked;
+        this.parkTimeoutMillis = parkTimeoutMillis;
+        this.evictionHandler = checkNotNull(evictionHandler);
     }
 
-    public void putForwardingObjective(ForwardingObjective obj) {
-        if (obj.nextId() != null) {
-            nextIdToFwdObjectives.put(obj.nextId(), obj);
+    /**
+     * Parks the given forwarding objective until its next objective is
+     * stored, unless an equal objective is already parked. If the parking
+     * area is full, the oldest parked objective is evicted.
+     *
+     * @param obj forwarding objective
+     */
+    public void parkForwardingObjective(ForwardingObjective obj) {
+        if (obj.nextId() == null) {
+            return;
+        }
+        final List<ForwardingObjective> evicted = Lists.newArrayList();
+        synchronized (this) {
+            final Map<ForwardingObjective, ParkedObjective> parkedForNextId = parkedByNextId.get(obj.nextId());
+            if (parkedForNextId != null && parkedForNextId.containsKey(obj)) {
+                log.debug("Forwarding objective {} already parked for next {}", obj.id(), obj.nextId());
+                return;
+            }
+            while (parkingOrder.size() >= maxParked) {
+                evicted.add(pollOldest().objective);
+            }
+            final ParkedObjective parked = new ParkedObjective(obj, System.currentTimeMillis());
+            parkedByNextId.computeIfAbsent(obj.nextId(), k -> Maps.newHashMap()).put(obj, parked);
+            parkingOrder.add(parked);
+            parkedBytes += parked.estimatedBytes;
+            if (expiryTask == null) {
+                scheduleExpiry(parkTimeoutMillis);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            log.warn("Parking area full ({} objectives), evicting {} oldest objective(s)",
+                     maxParked, evicted.size());
+            evicted.forEach(evictionHandler);
         }
     }
 
@@ -37,12 +138,367 @@ public class BcmObjectiveStore {
         nextObjectives.put(obj.id(), obj);
     }
 
+    /**
+     * Removes and returns the forwarding objectives parked for the given
+     * nextId.
+     *
+     * @param nextId next objective ID
+     * @return parked forwarding objectives
+     */
+    public synchronized Collection<ForwardingObjective> popAssociatedFwdObjectives(int nextId) {
+        final Map<ForwardingObjective, ParkedObjective> parked = parkedByNextId.remove(nextId);
+        if (parked == null) {
+            return Collections.emptyList();
+        }
+        parked.values().forEach(this::unpark);
+        return ImmutableList.copyOf(parked.keySet());
+    }
 
-    public Collection<ForwardingObjective> popAssociatedFwdObjectives(int nextId) {
-        return nextIdToFwdObjectives.removeAll(nextId);
+    public NextObjective getNextObjective(int nextId) {
+        return nextObjectives.get(nextId);
     }
 
-    public NextObjective popStoredNextObjective(int nextId) {
+    public NextObjective removeNextObjective(int nextId) {
+        forwardingKeysByNextId.remove(nextId);
         return nextObjectives.remove(nextId);
     }
+
+    /**
+     * Stores the flow rules installed for the given forwarding objective,
+     * replacing the ones of a previous objective with the same match.
+     *
+     * @param obj       forwarding objective
+     * @param flowRules flow rules
+     */
+    public void putForwardingFlowRules(ForwardingObjective obj, Collection<FlowRule> flowRules) {
+        final ForwardingKey key = ForwardingKey.of(obj);
+        final InstalledFlowRules previous = forwardingFlowRules.put(
+                key, new InstalledFlowRules(obj.nextId(), ImmutableList.copyOf(flowRules)));
+        if (previous != null && previous.nextId != null && !previous.nextId.equals(obj.nextId())) {
+            unindex(previous.nextId, key);
+        }
+        if (obj.nextId() != null) {
+            forwardingKeysByNextId.computeIfAbsent(obj.nextId(), id -> Sets.newConcurrentHashSet()).add(key);
+        }
+    }
+
+    /**
+     * Removes and returns the flow rules installed for the forwarding
+     * objective with the same match as the given one.
+     *
+     * @param obj forwarding objective
+     * @return flow rules, or null if no flow rules are known
+     */
+    public List<FlowRule> removeForwardingFlowRules(ForwardingObjective obj) {
+        final ForwardingKey key = ForwardingKey.of(obj);
+        final InstalledFlowRules removed = forwardingFlowRules.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        if (removed.nextId != null) {
+            unindex(removed.nextId, key);
+        }
+        return removed.flowRules;
+    }
+
+    /**
+     * Rewrites the flow rules installed for the forwarding objectives of the
+     * given next objective, e.g. when the next objective is moved to another
+     * group. The memoized flow rules are updated only once the rewrite is
+     * committed, i.e. once the rewritten flow rules have been installed.
+     *
+     * @param nextId   next objective ID
+     * @param rewriter returns the rewritten flow rule, or the same flow rule
+     *                 if unchanged
+     * @return rewrite of the flow rules
+     */
+    public FlowRulesRewrite rewriteForwardingFlowRules(int nextId, UnaryOperator<FlowRule> rewriter) {
+        final Set<ForwardingKey> keys = forwardingKeysByNextId.get(nextId);
+        final Map<ForwardingKey, InstalledFlowRules> previous = Maps.newHashMap();
+        final Map<ForwardingKey, InstalledFlowRules> rewritten = Maps.newHashMap();
+        final List<FlowRule> flowRules = Lists.newArrayList();
+        if (keys != null) {
+            keys.forEach(key -> {
+                final InstalledFlowRules installed = forwardingFlowRules.get(key);
+                if (installed == null || installed.nextId == null || installed.nextId != nextId) {
+                    return;
+                }
+                final ImmutableList.Builder<FlowRule> newFlowRules = ImmutableList.builder();
+                boolean changed = false;
+                for (FlowRule flowRule : installed.flowRules) {
+                    final FlowRule newFlowRule = rewriter.apply(flowRule);
+                    if (newFlowRule != flowRule) {
+                        flowRules.add(newFlowRule);
+                        changed = true;
+                    }
+                    newFlowRules.add(newFlowRule);
+                }
+                if (changed) {
+                    previous.put(key, installed);
+                    rewritten.put(key, new InstalledFlowRules(installed.nextId, newFlowRules.build()));
+                }
+            });
+        }
+        return new FlowRulesRewrite(flowRules, () -> rewritten.forEach(
+                // Unless replaced or removed in the meantime.
+                (key, installed) -> forwardingFlowRules.replace(key, previous.get(key), installed)));
+    }
+
+    private void unindex(int nextId, ForwardingKey key) {
+        final Set<ForwardingKey> keys = forwardingKeysByNextId.get(nextId);
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Returns statistics of the parked forwarding objectives.
+     *
+     * @return parked objectives statistics
+     */
+    public synchronized ParkedObjectivesStats parkedObjectivesStats() {
+        final long now = System.currentTimeMillis();
+        final int[] histogram = new int[AGE_HISTOGRAM_BOUNDS.length];
+        parkingOrder.forEach(p -> {
+            final long age = now - p.parkedAt;
+            int i = 0;
+            while (age >= AGE_HISTOGRAM_BOUNDS[i]) {
+                i++;
+            }
+            histogram[i]++;
+        });
+        final ImmutableSortedMap.Builder<Long, Integer> ageHistogram = ImmutableSortedMap.naturalOrder();
+        for (int i = 0; i < histogram.length; i++) {
+            ageHistogram.put(AGE_HISTOGRAM_BOUNDS[i], histogram[i]);
+        }
+        return new ParkedObjectivesStats(parkingOrder.size(), maxParked, parkedBytes, ageHistogram.build());
+    }
+
+    private void expireParkedObjectives() {
+        final List<ForwardingObjective> expired = Lists.newArrayList();
+        synchronized (this) {
+            expiryTask = null;
+            final long now = System.currentTimeMillis();
+            while (!parkingOrder.isEmpty()) {
+                final ParkedObjective oldest = parkingOrder.iterator().next();
+                if (now - oldest.parkedAt < parkTimeoutMillis) {
+                    scheduleExpiry(oldest.parkedAt + parkTimeoutMillis - now);
+                    break;
+                }
+                expired.add(pollOldest().objective);
+            }
+        }
+        if (!expired.isEmpty()) {
+            log.warn("{} parked objective(s) expired after {} ms", expired.size(), parkTimeoutMillis);
+            expired.forEach(evictionHandler);
+        }
+    }
+
+    // Must be called while holding this, with at least one parked objective.
+    private ParkedObjective pollOldest() {
+        final ParkedObjective oldest = parkingOrder.iterator().next();
+        final int nextId = oldest.objective.nextId();
+        final Map<ForwardingObjective, ParkedObjective> parked = parkedByNextId.get(nextId);
+        parked.remove(oldest.objective);
+        if (parked.isEmpty()) {
+            parkedByNextId.remove(nextId);
+        }
+        unpark(oldest);
+        return oldest;
+    }
+
+    // Must be called while holding this.
+    private void unpark(ParkedObjective parked) {
+        parkingOrder.remove(parked);
+        parkedBytes -= parked.estimatedBytes;
+    }
+
+    // Must be called while holding this.
+    private void scheduleExpiry(long delayMillis) {
+        expiryTask = SharedScheduledExecutors.newTimeout(
+                this::expireParkedObjectives, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flow rules rewritten by {@link #rewriteForwardingFlowRules}, to be
+     * committed once installed.
+     */
+    public static final class FlowRulesRewrite {
+
+        private final List<FlowRule> flowRules;
+        private final Runnable commit;
+
+        private FlowRulesRewrite(List<FlowRule> flowRules, Runnable commit) {
+            this.flowRules = ImmutableList.copyOf(flowRules);
+            this.commit = commit;
+        }
+
+        /**
+         * Returns the flow rules which have been rewritten.
+         *
+         * @return rewritten flow rules, empty if none
+         */
+        public List<FlowRule> flowRules() {
+            return flowRules;
+        }
+
+        /**
+         * Updates the memoized flow rules with the rewritten ones.
+         */
+        public void commit() {
+            commit.run();
+        }
+    }
+
+    /**
+     * Forwarding objective waiting for its next objective.
+     */
+    private static final class ParkedObjective {
+
+        private final ForwardingObjective objective;
+        private final long parkedAt;
+        private final int estimatedBytes;
+
+        private ParkedObjective(ForwardingObjective objective, long parkedAt) {
+            this.objective = objective;
+            this.parkedAt = parkedAt;
+            this.estimatedBytes = estimateBytes(objective);
+        }
+
+        private static int estimateBytes(ForwardingObjective objective) {
+            int bytes = PARKED_OBJECTIVE_BYTES + CRITERION_BYTES * objective.selector().criteria().size();
+            if (objective.treatment() != null) {
+                bytes += INSTRUCTION_BYTES * objective.treatment().allInstructions().size();
+            }
+            if (objective.meta() != null) {
+                bytes += CRITERION_BYTES * objective.meta().criteria().size();
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Flow rules installed for a forwarding objective.
+     */
+    private static final class InstalledFlowRules {
+
+        private final Integer nextId;
+        private final List<FlowRule> flowRules;
+
+        private InstalledFlowRules(Integer nextId, List<FlowRule> flowRules) {
+            this.nextId = nextId;
+            this.flowRules = flowRules;
+        }
+    }
+
+    /**
+     * Identity of a forwarding objective, shared by the objectives adding
+     * and removing the same flow rules.
+     */
+    private static final class ForwardingKey {
+
+        private final TrafficSelector selector;
+        private final ForwardingObjective.Flag flag;
+        private final int priority;
+        private final ApplicationId appId;
+
+        private ForwardingKey(TrafficSelector selector, ForwardingObjective.Flag flag,
+                              int priority, ApplicationId appId) {
+            this.selector = selector;
+            this.flag = flag;
+            this.priority = priority;
+            this.appId = appId;
+        }
+
+        private static ForwardingKey of(ForwardingObjective obj) {
+            return new ForwardingKey(obj.selector(), obj.flag(), obj.priority(), obj.appId());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(selector, flag, priority, appId);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final ForwardingKey other = (ForwardingKey) obj;
+            return this.priority == other.priority
+                    && this.flag == other.flag
+                    && Objects.equals(this.selector, other.selector)
+                    && Objects.equals(this.appId, other.appId);
+        }
+    }
+
+    /**
+     * Statistics of the forwarding objectives parked in the store.
+     */
+    public static final class ParkedObjectivesStats {
+
+        private final int count;
+        private final int capacity;
+        private final long estimatedBytes;
+        private final SortedMap<Long, Integer> ageHistogram;
+
+        private ParkedObjectivesStats(int count, int capacity, long estimatedBytes,
+                                      SortedMap<Long, Integer> ageHistogram) {
+            this.count = count;
+            this.capacity = capacity;
+            this.estimatedBytes = estimatedBytes;
+            this.ageHistogram = ageHistogram;
+        }
+
+        /**
+         * Returns the number of parked objectives.
+         *
+         * @return number of parked objectives
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Returns the maximum number of parked objectives.
+         *
+         * @return maximum number of parked objectives
+         */
+        public int capacity() {
+            return capacity;
+        }
+
+        /**
+         * Returns an estimate of the heap used by parked objectives, in bytes,
+         * from their number of criteria and instructions.
+         *
+         * @return estimated memory
+         */
+        public long estimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * Returns the number of parked objectives by age, each entry is keyed
+         * by the exclusive upper bound of its age bucket, in milliseconds.
+         *
+         * @return age histogram
+         */
+        public SortedMap<Long, Integer> ageHistogram() {
+            return ageHistogram;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("count", count)
+                    .add("capacity", capacity)
+                    .add("estimatedBytes", estimatedBytes())
+                    .add("ageHistogram", ageHistogram)
+                    .toString();
+        }
+    }
 }
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.DeviceId;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Admission control of packet-ins, applied before packets are parsed. Each
+ * device has a token bucket per ingress port and a token bucket per
+ * ethertype, a packet is admitted only if both have a token available.
+ */
+public final class BcmPacketInLimiter {
+
+    private static final Logger log = getLogger(BcmPacketInLimiter.class);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    // Drops of the same bucket are logged at most once in this interval.
+    private static final long DROP_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int ETH_TYPE_OFFSET = 12;
+    private static final int VLAN_HEADER_LENGTH = 4;
+
+    private static final ConcurrentMap<DeviceId, BcmPacketInLimiter> LIMITERS = Maps.newConcurrentMap();
+
+    private final DeviceId deviceId;
+    private volatile Limits limits;
+    private volatile boolean stale;
+    private final ConcurrentIntObjectMap<TokenBucket> portBuckets = new ConcurrentIntObjectMap<>();
+    private final ConcurrentIntObjectMap<TokenBucket> ethTypeBuckets = new ConcurrentIntObjectMap<>();
+
+    private BcmPacketInLimiter(DeviceId deviceId, Limits limits) {
+        this.deviceId = deviceId;
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the limiter of the given device, creating it if needed. The
+     * given supplier is used to get the limits of a new limiter, or to
+     * refresh them once invalidated.
+     *
+     * @param deviceId device ID
+     * @param limits   supplier of the device limits
+     * @return packet-in limiter
+     */
+    static BcmPacketInLimiter forDevice(DeviceId deviceId, Supplier<Limits> limits) {
+        BcmPacketInLimiter limiter = LIMITERS.get(deviceId);
+        if (limiter == null) {
+            limiter = new BcmPacketInLimiter(deviceId, limits.get());
+            final BcmPacketInLimiter previous = LIMITERS.putIfAbsent(deviceId, limiter);
+            if (previous != null) {
+                limiter = previous;
+            }
+        } else if (limiter.stale) {
+            limiter.stale = false;
+            limiter.limits = limits.get();
+        }
+        return limiter;
+    }
+
+    /**
+     * Returns the limiter of the given device, if any.
+     *
+     * @param deviceId device ID
+     * @return packet-in limiter, or null
+     */
+    public static BcmPacketInLimiter get(DeviceId deviceId) {
+        return LIMITERS.get(deviceId);
+    }
+
+    /**
+     * Marks the limits of the given device to be read again, e.g. after a
+     * configuration change.
+     *
+     * @param deviceId device ID
+     */
+    static void invalidateLimits(DeviceId deviceId) {
+        final BcmPacketInLimiter limiter = LIMITERS.get(deviceId);
+        if (limiter != null) {
+            limiter.stale = true;
+        }
+    }
+
+    /**
+     * Removes the limiter of the given device.
+     *
+     * @param deviceId device ID
+     */
+    static void remove(DeviceId deviceId) {
+        LIMITERS.remove(deviceId);
+    }
+
+    /**
+     * Removes the limiters of all devices.
+     */
+    static void clear() {
+        LIMITERS.clear();
+    }
+
+    /**
+     * Returns true if the given packet-in can be processed, consuming one
+     * token of its ingress port and ethertype buckets.
+     *
+     * @param port    ingress port
+     * @param payload packet payload
+     * @return true if admitted, false if the packet must be dropped
+     */
+    boolean admit(int port, ImmutableByteSequence payload) {
+        final Limits current = limits;
+        final long now = System.nanoTime();
+        final TokenBucket portBucket = portBuckets.computeIfAbsent(port, p -> new TokenBucket());
+        if (!portBucket.tryAcquire(current.portRate, current.portBurst, now)) {
+            logDrop(portBucket, now, "ingress port %d", port);
+            return false;
+        }
+        final int ethType = ethType(payload);
+        final TokenBucket ethTypeBucket = ethTypeBuckets.computeIfAbsent(ethType, t -> new TokenBucket());
+        if (!ethTypeBucket.tryAcquire(current.ethTypeRate, current.ethTypeBurst, now)) {
+            // The packet was admitted by its port bucket, which gets its
+            // token back.
+            portBucket.refund(current.portBurst);
+            logDrop(ethTypeBucket, now, "ethertype 0x%04x", ethType);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the packet-in statistics of each ingress port, keyed by port
+     * number.
+     *
+     * @return port statistics
+     */
+    public SortedMap<Integer, PacketInStats> portStats() {
+        return stats(portBuckets, limits.portRate);
+    }
+
+    /**
+     * Returns the packet-in statistics of each ethertype, keyed by ethertype.
+     *
+     * @return ethertype statistics
+     */
+    public SortedMap<Integer, PacketInStats> ethTypeStats() {
+        return stats(ethTypeBuckets, limits.ethTypeRate);
+    }
+
+    private SortedMap<Integer, PacketInStats> stats(ConcurrentIntObjectMap<TokenBucket> buckets, int limit) {
+        final ImmutableSortedMap.Builder<Integer, PacketInStats> stats = ImmutableSortedMap.naturalOrder();
+        final long now = System.nanoTime();
+        buckets.forEach((bucket, key) -> stats.put(key, bucket.stats(now, limit)));
+        return stats.build();
+    }
+
+    private void logDrop(TokenBucket bucket, long now, String bucketFormat, int key) {
+        // Sampled, a flood of packet-ins must not flood the log as well.
+        final long drops = bucket.dropsToLog(now);
+        if (drops > 0) {
+            log.warn("Dropped {} packet-in(s) from {} exceeding the rate limit of {}",
+                     drops, deviceId, format(bucketFormat, key));
+        }
+    }
+
+    private static int ethType(ImmutableByteSequence payload) {
+        final ByteBuffer buffer = payload.asReadOnlyBuffer();
+        if (buffer.limit() < ETH_TYPE_OFFSET + 2) {
+            return 0;
+        }
+        final int ethType = buffer.getShort(ETH_TYPE_OFFSET) & 0xFFFF;
+        if ((ethType == (Ethernet.TYPE_VLAN & 0xFFFF) || ethType == (Ethernet.TYPE_QINQ & 0xFFFF))
+                && buffer.limit() >= ETH_TYPE_OFFSET + VLAN_HEADER_LENGTH + 2) {
+            return buffer.getShort(ETH_TYPE_OFFSET + VLAN_HEADER_LENGTH) & 0xFFFF;
+        }
+        return ethType;
+    }
+
+    /**
+     * Packet-in limits of a device. A rate of zero disables the limit.
+     */
+    static final class Limits {
+
+        private final int portRate;
+        private final int portBurst;
+        private final int ethTypeRate;
+        private final int ethTypeBurst;
+
+        /**
+         * Creates new limits.
+         *
+         * @param portRate     packets per second admitted per ingress port
+         * @param portBurst    maximum burst per ingress port
+         * @param ethTypeRate  packets per second admitted per ethertype
+         * @param ethTypeBurst maximum burst per ethertype
+         */
+        Limits(int portRate, int portBurst, int ethTypeRate, int ethTypeBurst) {
+            this.portRate = Math.max(portRate, 0);
+            this.portBurst = Math.max(portBurst, 1);
+            this.ethTypeRate = Math.max(ethTypeRate, 0);
+            this.ethTypeBurst = Math.max(ethTypeBurst, 1);
+        }
+    }
+
+    /**
+     * Token bucket, also tracking the admitted and dropped packets.
+     */
+    private static final class TokenBucket {
+
+        private double tokens = -1;
+        private long lastRefill;
+        private long admitted;
+        private long dropped;
+        // Rate estimation over one-second windows.
+        private long windowStart;
+        private long windowAdmitted;
+        private long lastRate;
+        // Drops not logged yet.
+        private long unloggedDrops;
+        private long lastDropLog;
+
+        synchronized boolean tryAcquire(int rate, int burst, long now) {
+            updateWindow(now);
+            if (rate > 0) {
+                if (tokens < 0) {
+                    // First packet, start with a full bucket.
+                    tokens = burst;
+                } else {
+                    tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+                }
+                lastRefill = now;
+                if (tokens < 1) {
+                    dropped++;
+                    unloggedDrops++;
+                    return false;
+                }
+                tokens--;
+            }
+            admitted++;
+            windowAdmitted++;
+            return true;
+        }
+
+        synchronized void refund(int burst) {
+            if (tokens >= 0) {
+                tokens = Math.min(burst, tokens + 1);
+            }
+            admitted--;
+            windowAdmitted--;
+            dropped++;
+        }
+
+        synchronized long dropsToLog(long now) {
+            if (unloggedDrops == 0 || (lastDropLog != 0 && now - lastDropLog < DROP_LOG_INTERVAL_NANOS)) {
+                return 0;
+            }
+            final long drops = unloggedDrops;
+            unloggedDrops = 0;
+            lastDropLog = now;
+            return drops;
+        }
+
+        synchronized PacketInStats stats(long now, int limit) {
+            updateWindow(now);
+            return new PacketInStats(admitted, dropped, lastRate, limit);
+        }
+
+        private void updateWindow(long now) {
+            if (windowStart == 0) {
+                windowStart = now;
+            } else if (now - windowStart >= NANOS_PER_SECOND) {
+                final long elapsed = now - windowStart;
+                // No packets in the last full window means a rate of zero.
+                lastRate = elapsed >= 2 * NANOS_PER_SECOND ? 0
+                        : windowAdmitted * NANOS_PER_SECOND / elapsed;
+                windowStart = now;
+                windowAdmitted = 0;
+            }
+        }
+    }
+
+    /**
+     * Packet-in statistics of an ingress port or ethertype.
+     */
+    public static final class PacketInStats {
+
+        private final long admitted;
+        private final long dropped;
+        private final long rate;
+        private final int limit;
+
+        private PacketInStats(long admitted, long dropped, long rate, int limit) {
+            this.admitted = admitted;
+            this.dropped = dropped;
+            this.rate = rate;
+            this.limit = limit;
+        }
+
+        /**
+         * Returns the number of admitted packet-ins.
+         *
+         * @return admitted packet-ins
+         */
+        public long admitted() {
+            return admitted;
+        }
+
+        /**
+         * Returns the number of dropped packet-ins.
+         *
+         * @return dropped packet-ins
+         */
+        public long dropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the rate of admitted packet-ins over the last second, in
+         * packets per second.
+         *
+         * @return packet-in rate
+         */
+        public long rate() {
+            return rate;
+        }
+
+        /**
+         * Returns the configured limit in packets per second, zero if
+         * unlimited.
+         *
+         * @return rate limit
+         */
+        public int limit() {
+            return limit;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("admitted", admitted)
+                    .add("dropped", dropped)
+                    .add("rate", rate)
+                    .add("limit", limit)
+                    .toString();
+        }
+    }
+}
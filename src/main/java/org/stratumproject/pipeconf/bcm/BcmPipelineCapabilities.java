@@ -6,45 +6,146 @@
 
 package org.stratumproject.pipeconf.bcm;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiActionProfileModel;
 import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiPipeconfId;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.model.PiTableModel;
 import org.slf4j.Logger;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.CPU_PORT_TXT;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
- * Representation of the capabilities of a given BCM pipeconf.
+ * Representation of the capabilities of a given BCM pipeconf. Capabilities
+ * are read once, when created, and never change afterwards.
  */
 public class BcmPipelineCapabilities {
 
-    private final Logger log = getLogger(getClass());
+    private static final Logger log = getLogger(BcmPipelineCapabilities.class);
 
-    private final PiPipeconf pipeconf;
+    // Shared by all devices using the same pipeconf, invalidated when the
+    // pipeconf is registered again.
+    private static final ConcurrentMap<PiPipeconfId, BcmPipelineCapabilities> CAPABILITIES =
+            Maps.newConcurrentMap();
+
+    private final long fingerprint;
+    private final Optional<Integer> cpuPort;
+    private final Map<PiTableId, Long> tableSizes;
+    private final Map<PiActionProfileId, Long> actionProfileSizes;
+    private final Map<PiActionProfileId, Integer> actionProfileMaxGroupSizes;
 
     public BcmPipelineCapabilities(PiPipeconf pipeconf) {
-        this.pipeconf = checkNotNull(pipeconf);
+        checkNotNull(pipeconf);
+        this.fingerprint = pipeconf.fingerprint();
+        this.cpuPort = readCpuPort(pipeconf);
+        final ImmutableMap.Builder<PiTableId, Long> tables = ImmutableMap.builder();
+        final ImmutableMap.Builder<PiActionProfileId, Long> profiles = ImmutableMap.builder();
+        final ImmutableMap.Builder<PiActionProfileId, Integer> maxGroupSizes = ImmutableMap.builder();
+        final PiPipelineModel model = pipeconf.pipelineModel();
+        if (model != null) {
+            for (PiTableModel table : model.tables()) {
+                tables.put(table.id(), table.maxSize());
+            }
+            for (PiActionProfileModel profile : model.actionProfiles()) {
+                profiles.put(profile.id(), profile.size());
+                maxGroupSizes.put(profile.id(), profile.maxGroupSize());
+            }
+        }
+        this.tableSizes = tables.build();
+        this.actionProfileSizes = profiles.build();
+        this.actionProfileMaxGroupSizes = maxGroupSizes.build();
+    }
+
+    /**
+     * Returns the capabilities of the given pipeconf, reading them only if
+     * not read already for the same pipeconf.
+     *
+     * @param pipeconf pipeconf
+     * @return capabilities
+     */
+    public static BcmPipelineCapabilities of(PiPipeconf pipeconf) {
+        final BcmPipelineCapabilities cached = CAPABILITIES.get(pipeconf.id());
+        if (cached != null && cached.fingerprint == pipeconf.fingerprint()) {
+            return cached;
+        }
+        final BcmPipelineCapabilities capabilities = new BcmPipelineCapabilities(pipeconf);
+        CAPABILITIES.put(pipeconf.id(), capabilities);
+        return capabilities;
+    }
+
+    /**
+     * Invalidates the capabilities of the given pipeconf.
+     *
+     * @param pipeconfId pipeconf ID
+     */
+    static void invalidate(PiPipeconfId pipeconfId) {
+        CAPABILITIES.remove(pipeconfId);
     }
 
+    /**
+     * Returns the CPU port of the pipeconf.
+     *
+     * @return CPU port, or empty if unknown
+     */
     public Optional<Integer> cpuPort() {
+        return cpuPort;
+    }
+
+    /**
+     * Returns the maximum number of entries of the given table.
+     *
+     * @param tableId table ID
+     * @return table size, or empty if the table is unknown
+     */
+    public Optional<Long> tableSize(PiTableId tableId) {
+        return Optional.ofNullable(tableSizes.get(tableId));
+    }
+
+    /**
+     * Returns the maximum number of members of the given action profile.
+     *
+     * @param actionProfileId action profile ID
+     * @return action profile size, or empty if the action profile is unknown
+     */
+    public Optional<Long> actionProfileSize(PiActionProfileId actionProfileId) {
+        return Optional.ofNullable(actionProfileSizes.get(actionProfileId));
+    }
+
+    /**
+     * Returns the maximum number of members of a group of the given action
+     * profile.
+     *
+     * @param actionProfileId action profile ID
+     * @return maximum group size, or empty if the action profile is unknown
+     */
+    public Optional<Integer> actionProfileMaxGroupSize(PiActionProfileId actionProfileId) {
+        return Optional.ofNullable(actionProfileMaxGroupSizes.get(actionProfileId));
+    }
+
+    private static Optional<Integer> readCpuPort(PiPipeconf pipeconf) {
         // This is probably brittle, but needed to dynamically get the CPU port
         // for different platforms.
-        if (!pipeconf.extension(CPU_PORT_TXT).isPresent()) {
+        final Optional<InputStream> stream = pipeconf.extension(CPU_PORT_TXT);
+        if (!stream.isPresent()) {
             log.warn("Missing {} extension in pipeconf {}", CPU_PORT_TXT, pipeconf.id());
             return Optional.empty();
         }
-        try {
-            final InputStream stream = pipeconf.extension(CPU_PORT_TXT).get();
-            final BufferedReader buff = new BufferedReader(
-                    new InputStreamReader(stream));
+        try (BufferedReader buff = new BufferedReader(new InputStreamReader(stream.get()))) {
             final String str = buff.readLine();
-            buff.close();
             if (str == null) {
                 log.error("Empty CPU port file for {}", pipeconf.id());
                 return Optional.empty();
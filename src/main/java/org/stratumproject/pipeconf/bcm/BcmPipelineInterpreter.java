@@ -8,10 +8,11 @@ package org.stratumproject.pipeconf.bcm;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.onlab.packet.DeserializationException;
 import org.onlab.packet.Ethernet;
 import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.Annotations;
 import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
@@ -21,9 +22,6 @@ import org.onosproject.net.driver.DriverHandler;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flow.instructions.Instructions;
-import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModEtherInstruction;
-import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModMplsLabelInstruction;
-import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModVlanIdInstruction;
 import org.onosproject.net.packet.*;
 import org.onosproject.net.pi.model.*;
 import org.onosproject.net.pi.runtime.*;
@@ -42,11 +40,9 @@ import static java.util.stream.Collectors.toList;
 import static org.onlab.util.ImmutableByteSequence.copyFrom;
 import static org.onosproject.net.PortNumber.FLOOD;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
-import static org.onosproject.net.flow.instructions.L2ModificationInstruction.L2SubType.*;
-import static org.onosproject.net.flow.instructions.L2ModificationInstruction.L2SubType.MPLS_LABEL;
 import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_OUT;
 import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.*;
-import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.l2Instruction;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.intDeviceProperty;
 
 /**
  * The pipeline interpreter of BCM pipeline.
@@ -54,6 +50,18 @@ import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.l2Instruction;
 public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements PiPipelineInterpreter {
 
     private static final Logger log = LoggerFactory.getLogger(BcmPipelineInterpreter.class);
+
+    // Packet-in limits, in packets per second, zero means unlimited. Set
+    // per device with annotations, or for all devices with driver properties.
+    // Unlimited by default, bursts apply once a rate is set.
+    static final String PACKET_IN_PORT_RATE = "packetInPortRate";
+    static final String PACKET_IN_PORT_BURST = "packetInPortBurst";
+    static final String PACKET_IN_ETH_TYPE_RATE = "packetInEthTypeRate";
+    static final String PACKET_IN_ETH_TYPE_BURST = "packetInEthTypeBurst";
+    private static final int DEFAULT_PACKET_IN_PORT_RATE = 0;
+    private static final int DEFAULT_PACKET_IN_PORT_BURST = 2000;
+    private static final int DEFAULT_PACKET_IN_ETH_TYPE_RATE = 0;
+    private static final int DEFAULT_PACKET_IN_ETH_TYPE_BURST = 10000;
     private static final ImmutableMap<Criterion.Type, PiMatchFieldId> CRITERION_MAP =
             ImmutableMap.<Criterion.Type, PiMatchFieldId>builder()
                     .put(Criterion.Type.IN_PORT, STANDARD_METADATA_INGRESS_PORT)
@@ -69,6 +77,16 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
                     .put(Criterion.Type.ETH_DST, HDR_ETHERNET_DST_ADDR)
                     .put(Criterion.Type.MPLS_LABEL, HDR_MPLS_LABEL)
             .build();
+    private static final PiAction SET_L3_ADMIT_ACTION = PiAction.builder().withId(SET_L3_ADMIT).build();
+    // Treatment mapping of each table, actions are interned, see
+    // BcmActionCache.
+    private static final ImmutableMap<PiTableId, TreatmentMapper> TREATMENT_MAPPERS =
+            ImmutableMap.<PiTableId, TreatmentMapper>builder()
+                    .put(MY_STATION_TABLE, treatment -> SET_L3_ADMIT_ACTION)
+                    .put(L2_UNICAST_TABLE, BcmPipelineInterpreter::mapL2UnicastTreatment)
+                    .put(L3_FWD_TABLE, BcmPipelineInterpreter::mapL3FwdTreatment)
+                    .put(L3_MPLS_TABLE, BcmPipelineInterpreter::mapL3MplsTreatment)
+                    .build();
     private BcmPipelineCapabilities capabilities;
     private DeviceService deviceService;
     private DeviceId deviceId;
@@ -82,7 +100,7 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
         final PiPipeconfService pipeconfService = handler().get(PiPipeconfService.class);
         this.deviceId = handler().data().deviceId();
         this.capabilities = pipeconfService.getPipeconf(deviceId)
-            .map(BcmPipelineCapabilities::new)
+            .map(BcmPipelineCapabilities::of)
             .orElse(null);
         this.deviceService = handler().get(DeviceService.class);
 
@@ -105,81 +123,47 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
     @Override
     public PiAction mapTreatment(TrafficTreatment treatment,
                                  PiTableId piTableId) throws PiInterpreterException {
-        PortNumber outPort = BcmPipelineUtils.outputPort(treatment);
-        final ModEtherInstruction ethSrc =
-                (ModEtherInstruction) l2Instruction(treatment, ETH_SRC);
-        final ModEtherInstruction ethDst =
-                (ModEtherInstruction) l2Instruction(treatment, ETH_DST);
-        ModMplsLabelInstruction mplsLabel =
-                (ModMplsLabelInstruction) l2Instruction(treatment, MPLS_LABEL);
-
-        if (piTableId.equals(MY_STATION_TABLE)) {
-            return PiAction.builder().withId(SET_L3_ADMIT).build();
-        }
-
-        if (piTableId.equals(L2_UNICAST_TABLE)) {
-            checkNotNull(outPort);
-            PiActionParam param = new PiActionParam(PORT, outPort.toLong());
-            return PiAction.builder().withId(L2_FWD_SET_EGRESS_PORT)
-                    .withParameter(param)
-                    .build();
-        }
-
-        if (piTableId.equals(L3_FWD_TABLE)) {
-            checkNotNull(outPort);
-            checkNotNull(ethSrc);
-            checkNotNull(ethDst);
+        final TreatmentMapper mapper = TREATMENT_MAPPERS.get(piTableId);
+        return mapper == null ? null : mapper.map(treatment);
+    }
 
-            PiAction.Builder actionBuilder = PiAction.builder();
-            actionBuilder.withParameter(new PiActionParam(PORT, outPort.toLong()));
-            actionBuilder.withParameter(new PiActionParam(SMAC, ethSrc.mac().toBytes()));
-            actionBuilder.withParameter(new PiActionParam(DMAC, ethDst.mac().toBytes()));
+    private static PiAction mapL2UnicastTreatment(TrafficTreatment treatment) {
+        final TreatmentView view = TreatmentView.of(treatment);
+        checkNotNull(view.outPort());
+        return BcmActionCache.l2EgressPort(view.outPort().toLong());
+    }
 
-            // encap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<20> mpls_label, bit<8> mpls_ttl)
-            if (mplsLabel != null) {
-                actionBuilder.withParameter(new PiActionParam(BcmPipelineConstants.MPLS_LABEL, mplsLabel.label().toInt()));
-                actionBuilder.withParameter(DEFATUL_MPLS_TTL);
+    private static PiAction mapL3FwdTreatment(TrafficTreatment treatment) {
+        final TreatmentView view = TreatmentView.of(treatment);
+        checkNotNull(view.outPort());
+        checkNotNull(view.ethSrc());
+        checkNotNull(view.ethDst());
 
-                return actionBuilder
-                    .withId(L3_FWD_ENCAP_MPLS)
-                    .build();
-            }
+        // encap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<20> mpls_label, bit<8> mpls_ttl)
+        if (view.mplsLabel() != null) {
+            return BcmActionCache.encapMpls(view.outPort().toLong(), view.ethSrc(), view.ethDst(),
+                                            view.mplsLabel().toInt());
+        }
 
-            // set_nexthop(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<12> dst_vlan)
-            final ModVlanIdInstruction vlanId =
-                    (ModVlanIdInstruction) l2Instruction(treatment, VLAN_ID);
-            checkNotNull(vlanId);
+        // set_nexthop(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<12> dst_vlan)
+        checkNotNull(view.vlanId());
+        return BcmActionCache.setNextHop(view.outPort().toLong(), view.ethSrc(), view.ethDst(),
+                                         view.vlanId().toShort());
+    }
 
-            actionBuilder.withParameter(new PiActionParam(DST_VLAN, vlanId.vlanId().toShort()));
-            return actionBuilder
-                .withId(L3_FWD_SET_NEXTHOP)
-                .build();
-        }
+    private static PiAction mapL3MplsTreatment(TrafficTreatment treatment) {
+        final TreatmentView view = TreatmentView.of(treatment);
+        checkNotNull(view.outPort());
+        checkNotNull(view.ethSrc());
+        checkNotNull(view.ethDst());
 
-        if (piTableId == L3_MPLS_TABLE) {
-            checkNotNull(outPort);
-            checkNotNull(ethSrc);
-            checkNotNull(ethDst);
-
-            PiAction.Builder actionBuilder = PiAction.builder();
-            actionBuilder.withParameter(new PiActionParam(PORT, outPort.toLong()));
-            actionBuilder.withParameter(new PiActionParam(SMAC, ethSrc.mac().toBytes()));
-            actionBuilder.withParameter(new PiActionParam(DMAC, ethDst.mac().toBytes()));
-
-            if (mplsLabel != null) {
-                // swap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<20> mpls_label)
-                actionBuilder.withParameter(new PiActionParam(BcmPipelineConstants.MPLS_LABEL, mplsLabel.label().toInt()));
-                return actionBuilder
-                    .withId(L3_FWD_SWAP_MPLS)
-                    .build();
-            }
-            // decap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac)
-            return actionBuilder
-                .withId(L3_FWD_DECAP_MPLS)
-                .build();
+        if (view.mplsLabel() != null) {
+            // swap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac, bit<20> mpls_label)
+            return BcmActionCache.swapMpls(view.outPort().toLong(), view.ethSrc(), view.ethDst(),
+                                           view.mplsLabel().toInt());
         }
-
-        return null;
+        // decap_mpls(PortNum port, EthernetAddress smac, EthernetAddress dmac)
+        return BcmActionCache.decapMpls(view.outPort().toLong(), view.ethSrc(), view.ethDst());
     }
 
     private PiPacketOperation createPiPacketOperation(ByteBuffer data, long portNumber)
@@ -218,6 +202,10 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
             throw new PiInterpreterException("Treatment not supported: " + treatment);
         }
 
+        // The payload is copied once and shared by all packet-outs.
+        final ImmutableByteSequence payload = outInstructions.isEmpty() ? null : copyFrom(packet.data());
+        final BcmPortCache.DevicePorts ports = outInstructions.isEmpty() ? null
+                : BcmPortCache.devicePorts(deviceService, packet.sendThrough());
         ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
         for (Instructions.OutputInstruction outInst : outInstructions) {
             if (outInst.port().isLogical() && !outInst.port().equals(FLOOD)) {
@@ -227,22 +215,31 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
             } else if (outInst.port().equals(FLOOD)) {
                 // To emulate flooding, we create a packet-out operation for
                 // each switch port.
-                final DeviceService deviceService = handler().get(DeviceService.class);
-                for (Port port : deviceService.getPorts(packet.sendThrough())) {
-                    builder.add(buildPacketOut(packet.data(), port.number().toLong()));
+                for (PiPacketMetadata portMetadata : ports.floodMetadata()) {
+                    builder.add(buildPacketOut(payload, portMetadata));
                 }
             } else {
                 PortNumber outPortNumber = outInst.port();
-                Port outPort = deviceService.getPort(deviceId, outPortNumber);
+                BcmPortCache.PortInfo outPort = ports.port(outPortNumber);
+
+                if (outPort == null) {
+                    throw new PiInterpreterException(format(
+                            "Packet-out on unknown port '%s' of %s", outPortNumber, packet.sendThrough()));
+                }
 
                 if (outPort.type() != Port.Type.COPPER) {
                     // Ignore non-copper ports
-                    log.debug("Ignore non-copper port {}", outPort);
+                    log.debug("Ignore non-copper port {}", outPortNumber);
                     continue;
                 }
 
+                if (outPort.egressMetadata() == null) {
+                    throw new PiInterpreterException(format(
+                            "Port number %s too big", outPortNumber));
+                }
+
                 // Create only one packet-out for the given OUTPUT instruction.
-                builder.add(buildPacketOut(packet.data(), outInst.port().toLong()));
+                builder.add(buildPacketOut(payload, outPort.egressMetadata()));
             }
         }
         return builder.build();
@@ -251,37 +248,18 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
 
     /**
      * Builds a pipeconf-specific packet-out instance with the given payload and
-     * egress port.
+     * egress port metadata.
      *
-     * @param pktData    packet payload
-     * @param portNumber egress port
+     * @param payload        packet payload
+     * @param portMetadata   egress port metadata
      * @return packet-out
-     * @throws PiInterpreterException if packet-out cannot be built
      */
-    private PiPacketOperation buildPacketOut(ByteBuffer pktData, long portNumber)
-            throws PiInterpreterException {
-
-        // Make sure port number can fit in v1model port metadata bitwidth.
-        final ImmutableByteSequence portBytes;
-        try {
-            portBytes = copyFrom(portNumber).fit(PORT_BITWIDTH);
-        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
-            throw new PiInterpreterException(format(
-                    "Port number %d too big, %s", portNumber, e.getMessage()));
-        }
-
-        // Create metadata instance for egress port.
-        final String outPortMetadataName = "egress_physical_port";
-        final PiPacketMetadata outPortMetadata = PiPacketMetadata.builder()
-                .withId(PiPacketMetadataId.of(outPortMetadataName))
-                .withValue(portBytes)
-                .build();
-
+    private PiPacketOperation buildPacketOut(ImmutableByteSequence payload, PiPacketMetadata portMetadata) {
         // Build packet out.
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
-                .withData(copyFrom(pktData))
-                .withMetadata(outPortMetadata)
+                .withData(payload)
+                .withMetadata(portMetadata)
                 .build();
     }
 
@@ -289,43 +267,67 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
     public InboundPacket mapInboundPacket(PiPacketOperation packetIn, DeviceId deviceId) throws PiInterpreterException {
 
         // Find the ingress_port metadata.
-        final String inportMetadataName = "ingress_physical_port";
-        Optional<PiPacketMetadata> inportMetadata = packetIn.metadatas()
-                .stream()
-                .filter(meta -> meta.id().id().equals(inportMetadataName))
-                .findFirst();
+        PiPacketMetadata inportMetadata = null;
+        for (PiPacketMetadata metadata : packetIn.metadatas()) {
+            if (metadata.id().equals(HDR_PACKET_IN_INGRESS_PHYSICAL_PORT)) {
+                inportMetadata = metadata;
+                break;
+            }
+        }
 
-        if (inportMetadata.isEmpty()) {
+        if (inportMetadata == null) {
             throw new PiInterpreterException(format(
                     "Missing metadata '%s' in packet-in received from '%s': %s",
-                    inportMetadataName, deviceId, packetIn));
+                    HDR_PACKET_IN_INGRESS_PHYSICAL_PORT, deviceId, packetIn));
         }
 
-        // Build ONOS InboundPacket instance with the given ingress port.
-
-        // 1. Parse packet-in object into Ethernet packet instance.
-        final byte[] payloadBytes = packetIn.data().asArray();
-        final ByteBuffer rawData = ByteBuffer.wrap(payloadBytes);
-        final Ethernet ethPkt;
-        try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    payloadBytes, 0, packetIn.data().size());
-        } catch (DeserializationException dex) {
-            throw new PiInterpreterException(dex.getMessage());
+        // Payloads without a complete Ethernet header are rejected before
+        // being counted, other malformed payloads fail when parsed.
+        if (packetIn.data().size() < Ethernet.ETHERNET_HEADER_LENGTH) {
+            throw new PiInterpreterException(format(
+                    "Packet-in received from '%s' is too short for an Ethernet header (%d bytes)",
+                    deviceId, packetIn.data().size()));
         }
 
-        // 2. Get ingress port
-        final ImmutableByteSequence portBytes;
-        try {
-            portBytes = inportMetadata.get().value().fit(PORT_BITWIDTH);
-        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
-            throw new PiInterpreterException(e.getMessage());
+        final long inPort = portNumber(inportMetadata.value());
+        // Admission control before parsing, dropped packet-ins are not
+        // processed further.
+        if (handler() != null && !packetInLimiter(deviceId).admit((int) inPort, packetIn.data())) {
+            return null;
         }
-        final short portNum = portBytes.asReadOnlyBuffer().getShort();
+
+        // Build ONOS InboundPacket instance with the given ingress port. The
+        // payload is not copied, and parsed only if requested.
         final ConnectPoint receivedFrom = new ConnectPoint(
-                deviceId, PortNumber.portNumber(portNum));
+                deviceId, PortNumber.portNumber(inPort));
+        return new BcmInboundPacket(receivedFrom, packetIn.data());
+    }
 
-        return new DefaultInboundPacket(receivedFrom, ethPkt, rawData);
+    private BcmPacketInLimiter packetInLimiter(DeviceId deviceId) {
+        return BcmPacketInLimiter.forDevice(deviceId, () -> {
+            final Device device = deviceService == null ? null : deviceService.getDevice(deviceId);
+            final Annotations annotations = device == null ? null : device.annotations();
+            return new BcmPacketInLimiter.Limits(
+                    intDeviceProperty(handler(), annotations, PACKET_IN_PORT_RATE, DEFAULT_PACKET_IN_PORT_RATE),
+                    intDeviceProperty(handler(), annotations, PACKET_IN_PORT_BURST, DEFAULT_PACKET_IN_PORT_BURST),
+                    intDeviceProperty(handler(), annotations, PACKET_IN_ETH_TYPE_RATE,
+                                      DEFAULT_PACKET_IN_ETH_TYPE_RATE),
+                    intDeviceProperty(handler(), annotations, PACKET_IN_ETH_TYPE_BURST,
+                                      DEFAULT_PACKET_IN_ETH_TYPE_BURST));
+        });
+    }
+
+    private static long portNumber(ImmutableByteSequence value) throws PiInterpreterException {
+        if (value.msbIndex() >= PORT_BITWIDTH) {
+            throw new PiInterpreterException(format(
+                    "Ingress port %s does not fit in %d bits", value, PORT_BITWIDTH));
+        }
+        final ByteBuffer buffer = value.asReadOnlyBuffer();
+        long port = 0;
+        while (buffer.hasRemaining()) {
+            port = (port << 8) | (buffer.get() & 0xFF);
+        }
+        return port;
     }
 
     @Override
@@ -338,4 +340,12 @@ public class BcmPipelineInterpreter extends AbstractHandlerBehaviour implements
         }
         return Optional.empty();
     }
+
+    /**
+     * Maps the treatment of a given table to an action.
+     */
+    @FunctionalInterface
+    private interface TreatmentMapper {
+        PiAction map(TrafficTreatment treatment) throws PiInterpreterException;
+    }
 }
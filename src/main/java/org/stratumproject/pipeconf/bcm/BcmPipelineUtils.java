@@ -6,7 +6,10 @@
 
 package org.stratumproject.pipeconf.bcm;
 
+import com.google.common.collect.Maps;
+import org.onosproject.net.Annotations;
 import org.onosproject.net.PortNumber;
+import org.onosproject.net.driver.DriverHandler;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
@@ -16,9 +19,12 @@ import org.onosproject.net.flow.instructions.L2ModificationInstruction;
 import org.onosproject.net.flowobjective.DefaultNextTreatment;
 import org.onosproject.net.flowobjective.NextObjective;
 import org.onosproject.net.flowobjective.NextTreatment;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -115,4 +121,91 @@ public final class BcmPipelineUtils {
         return l2ModificationInstructions(obj)
                 .anyMatch(ins -> ins.subtype() == mplsOp);
     }
+
+    /**
+     * Returns the weight of the given group buckets by treatment, weights of
+     * buckets with the same treatment are summed. Group buckets are compared
+     * this way since their equality ignores weights.
+     *
+     * @param buckets group buckets
+     * @return weights by treatment
+     */
+    public static Map<TrafficTreatment, Integer> bucketWeights(GroupBuckets buckets) {
+        final Map<TrafficTreatment, Integer> weights = Maps.newLinkedHashMap();
+        for (GroupBucket bucket : buckets.buckets()) {
+            weights.merge(bucket.treatment(), Math.max(bucket.weight(), 1), Integer::sum);
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the integer value of the given driver property, or the given
+     * default value if the property is not set or is not a valid integer.
+     *
+     * @param handler      driver handler
+     * @param name         property name
+     * @param defaultValue default value
+     * @return property value
+     */
+    public static int intDriverProperty(DriverHandler handler, String name, int defaultValue) {
+        final String value = handler == null ? null : handler.driver().getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the boolean value of the given driver property, or the given
+     * default value if the property is not set or is neither "true" nor
+     * "false".
+     *
+     * @param handler      driver handler
+     * @param name         property name
+     * @param defaultValue default value
+     * @return property value
+     */
+    public static boolean boolDriverProperty(DriverHandler handler, String name, boolean defaultValue) {
+        final String value = handler == null ? null : handler.driver().getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the integer value of the given device annotation, falling back
+     * to the driver property with the same name when the annotation is not
+     * set or is not a valid integer. Annotations can be set per device via
+     * network configuration.
+     *
+     * @param handler      driver handler
+     * @param annotations  device annotations, can be null
+     * @param name         property name
+     * @param defaultValue default value
+     * @return property value
+     */
+    public static int intDeviceProperty(DriverHandler handler, Annotations annotations,
+                                        String name, int defaultValue) {
+        final String value = annotations == null ? null : annotations.value(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                // Fall back to the driver property.
+            }
+        }
+        return intDriverProperty(handler, name, defaultValue);
+    }
 }
@@ -7,6 +7,9 @@
 package org.stratumproject.pipeconf.bcm;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
 import org.onlab.util.KryoNamespace;
 import org.onlab.util.SharedExecutors;
 import org.onosproject.net.DeviceId;
@@ -16,36 +19,110 @@ import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.behaviour.PipelinerContext;
 import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.FlowRule;
-import org.onosproject.net.flow.FlowRuleOperations;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flowobjective.*;
+import org.onosproject.net.group.Group;
 import org.onosproject.net.group.GroupDescription;
 import org.onosproject.net.group.GroupService;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
 import org.onosproject.net.pi.service.PiPipeconfService;
 import org.onosproject.store.serializers.KryoNamespaces;
 import org.slf4j.Logger;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.boolDriverProperty;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.intDriverProperty;
 import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.outputPort;
 import static org.slf4j.LoggerFactory.getLogger;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Pipeliner implementation for the BCM pipeline.
+ * Pipeliner implementation for the BCM pipeline. Objectives are processed
+ * asynchronously by a bounded queue shared with the other devices, when the
+ * queue is still full after the configured wait objectives fail with
+ * {@link ObjectiveError#INSTALLATIONTHRESHOLDEXCEEDED} and should be retried.
  */
 public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner {
 
     private static final Logger log = getLogger(BcmPipeliner.class);
 
+    // Number of lock stripes used to serialize objectives sharing a nextId.
+    private static final int NEXT_ID_LOCK_STRIPES = 1024;
+
+    // Driver properties to tune the coalescing of flow rules from different
+    // objectives, setting the maximum number of objectives to 1 disables it.
+    static final String FLOW_BATCH_MAX_OBJECTIVES = "flowBatchMaxObjectives";
+    static final String FLOW_BATCH_MAX_MILLIS = "flowBatchMaxMillis";
+    static final String FLOW_BATCH_MAX_IDLE_MILLIS = "flowBatchMaxIdleMillis";
+    private static final int DEFAULT_FLOW_BATCH_MAX_OBJECTIVES = 1000;
+    private static final int DEFAULT_FLOW_BATCH_MAX_MILLIS = 50;
+    private static final int DEFAULT_FLOW_BATCH_MAX_IDLE_MILLIS = 10;
+
+    // Driver properties to bound the objectives queued per worker and the
+    // time the caller waits when the queue is full before the objective
+    // fails. The queue is shared, the largest capacity of all devices applies.
+    static final String OBJECTIVE_QUEUE_CAPACITY = "objectiveQueueCapacity";
+    static final String OBJECTIVE_QUEUE_WAIT_MILLIS = "objectiveQueueWaitMillis";
+    private static final int DEFAULT_OBJECTIVE_QUEUE_WAIT_MILLIS = 0;
+    // Minimum time between warnings about objectives failed by a full queue.
+    private static final long QUEUE_FULL_LOG_INTERVAL_MILLIS = 1000;
+
+    // Driver properties to bound the forwarding objectives waiting for their
+    // next objective.
+    static final String PARKED_OBJECTIVES_MAX = "parkedObjectivesMax";
+    static final String PARKED_OBJECTIVES_TIMEOUT_MILLIS = "parkedObjectivesTimeoutMillis";
+    private static final int DEFAULT_PARKED_OBJECTIVES_MAX = 10000;
+    private static final int DEFAULT_PARKED_OBJECTIVES_TIMEOUT_MILLIS = 30000;
+
+    // Driver property to bound the time waited for a group to be confirmed
+    // by the device.
+    static final String GROUP_CONFIRMATION_TIMEOUT_MILLIS = "groupConfirmationTimeoutMillis";
+    private static final int DEFAULT_GROUP_CONFIRMATION_TIMEOUT_MILLIS = 30000;
+
+    // Driver properties overriding the capacity of a table or action profile
+    // given by P4Info, the table or action profile ID follows the prefix.
+    static final String TABLE_CAPACITY_PREFIX = "tableCapacity.";
+    static final String ACTION_PROFILE_CAPACITY_PREFIX = "actionProfileCapacity.";
+
+    // Driver property mapping punt selectors to CPU queues, see
+    // PuntQueueMapper for the format.
+    static final String PUNT_QUEUE_MAP = "puntQueueMap";
+
+    // Driver property bounding the members of a WCMP group, weights are
+    // scaled down to fit. Zero uses the max group size given by P4Info.
+    static final String WCMP_MAX_GROUP_SIZE = "wcmpMaxGroupSize";
+    private static final int DEFAULT_WCMP_MAX_GROUP_SIZE = 0;
+
+    // Driver property to disable the sharing of groups between next
+    // objectives with the same buckets.
+    static final String NEXT_GROUP_SHARING = "nextGroupSharing";
+    private static final boolean DEFAULT_NEXT_GROUP_SHARING = true;
+
+    // Driver property to disable the removal of the buckets of a port from
+    // all groups as soon as the port goes down.
+    static final String PORT_FAILOVER = "portFailover";
+    private static final boolean DEFAULT_PORT_FAILOVER = true;
+
     protected static final KryoNamespace KRYO = new KryoNamespace.Builder()
             .register(KryoNamespaces.API)
             .register(BcmNextGroup.class)
@@ -58,15 +135,28 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
     protected FlowObjectiveStore flowObjectiveStore;
     protected PiPipeconfService piPipeconfService;
 
+    // Translators are shared with the other devices using the same
+    // pipeconf, state of this device is given by the translation context.
     private FilteringObjectiveTranslator filteringTranslator;
     private ForwardingObjectiveTranslator forwardingTranslator;
     private NextObjectiveTranslator nextTranslator;
-
-    // Let's handle one forwarding or next objective at a time
-    private ReentrantLock fwdNextObjLock;
+    private TranslationContext translationContext;
+    private SharedNextGroups nextGroups;
+    private BcmTableOccupancy tableOccupancy;
+    private BcmPortFailover portFailover;
+
+    // Forwarding and next objectives sharing the same nextId are handled one
+    // at a time, unrelated ones can be processed in parallel.
+    private Striped<Lock> nextIdLocks;
     private BcmObjectiveStore bcmObjectiveStore;
-
-    private final ExecutorService callbackExecutor = SharedExecutors.getPoolThreadExecutor();
+    private FlowRuleAccumulator flowRuleAccumulator;
+    // Objectives are notified once their flow rules and groups are confirmed,
+    // callbacks are invoked in batches.
+    private GroupCompletionTracker groupTracker;
+    private ObjectiveCallbackDispatcher callbackDispatcher;
+    private int objectiveQueueWaitMillis;
+    private final AtomicLong queueFullLogMillis = new AtomicLong();
+    private final AtomicInteger queueFullFailures = new AtomicInteger();
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
@@ -78,45 +168,310 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
         piPipeconfService = context.directory().get(PiPipeconfService.class);
         flowObjectiveStore = context.store();
 
-        fwdNextObjLock = new ReentrantLock();
-        bcmObjectiveStore = new BcmObjectiveStore();
-
-        BcmPipelineCapabilities capabilities = piPipeconfService.getPipeconf(deviceId)
-            .map(BcmPipelineCapabilities::new)
+        // Lazily created, most stripes of most devices are never used.
+        nextIdLocks = Striped.lazyWeakLock(NEXT_ID_LOCK_STRIPES);
+        BcmObjectiveExecutor.requestSharedQueueCapacity(
+                intDriverProperty(handler(), OBJECTIVE_QUEUE_CAPACITY, BcmObjectiveExecutor.DEFAULT_QUEUE_CAPACITY));
+        objectiveQueueWaitMillis = intDriverProperty(handler(), OBJECTIVE_QUEUE_WAIT_MILLIS,
+                                                     DEFAULT_OBJECTIVE_QUEUE_WAIT_MILLIS);
+        callbackDispatcher = new ObjectiveCallbackDispatcher(SharedExecutors.getPoolThreadExecutor());
+        groupTracker = new GroupCompletionTracker(
+                deviceId, groupService,
+                intDriverProperty(handler(), GROUP_CONFIRMATION_TIMEOUT_MILLIS,
+                                  DEFAULT_GROUP_CONFIRMATION_TIMEOUT_MILLIS));
+        GroupCompletionTracker.register(groupTracker);
+        bcmObjectiveStore = new BcmObjectiveStore(
+                intDriverProperty(handler(), PARKED_OBJECTIVES_MAX, DEFAULT_PARKED_OBJECTIVES_MAX),
+                intDriverProperty(handler(), PARKED_OBJECTIVES_TIMEOUT_MILLIS,
+                                  DEFAULT_PARKED_OBJECTIVES_TIMEOUT_MILLIS),
+                this::evictParkedObjective);
+        flowRuleAccumulator = new FlowRuleAccumulator(
+                flowRuleService,
+                intDriverProperty(handler(), FLOW_BATCH_MAX_OBJECTIVES, DEFAULT_FLOW_BATCH_MAX_OBJECTIVES),
+                intDriverProperty(handler(), FLOW_BATCH_MAX_MILLIS, DEFAULT_FLOW_BATCH_MAX_MILLIS),
+                intDriverProperty(handler(), FLOW_BATCH_MAX_IDLE_MILLIS, DEFAULT_FLOW_BATCH_MAX_IDLE_MILLIS));
+
+        BcmTranslators translators = piPipeconfService.getPipeconf(deviceId)
+            .map(BcmTranslators::of)
             .orElse(null);
 
-        checkNotNull(capabilities);
+        checkNotNull(translators);
+
+        filteringTranslator = translators.filtering();
+        forwardingTranslator = translators.forwarding();
+        nextTranslator = translators.next();
+        final String puntQueueMap = handler() == null ? null : handler().driver().getProperty(PUNT_QUEUE_MAP);
+        nextGroups = new SharedNextGroups(
+                deviceId, boolDriverProperty(handler(), NEXT_GROUP_SHARING, DEFAULT_NEXT_GROUP_SHARING));
+        translationContext = new TranslationContext(
+                deviceId, bcmObjectiveStore, PuntQueueMapper.parse(puntQueueMap),
+                intDriverProperty(handler(), WCMP_MAX_GROUP_SIZE, DEFAULT_WCMP_MAX_GROUP_SIZE),
+                nextGroups);
+        final BcmPipelineCapabilities capabilities = translators.capabilities();
+        tableOccupancy = new BcmTableOccupancy(
+                deviceId,
+                tableId -> intDriverProperty(handler(), TABLE_CAPACITY_PREFIX + tableId.id(),
+                                             capabilities.tableSize(tableId).orElse(0L).intValue()),
+                profileId -> intDriverProperty(handler(), ACTION_PROFILE_CAPACITY_PREFIX + profileId.id(),
+                                               capabilities.actionProfileSize(profileId).orElse(0L).intValue()),
+                profileId -> capabilities.actionProfileMaxGroupSize(profileId).orElse(0));
+        // Entries already on the device, e.g. after a mastership change.
+        tableOccupancy.seed(flowRuleService.getFlowEntries(deviceId), groupService.getGroups(deviceId));
+        BcmTableOccupancy.register(tableOccupancy);
+        restoreNextGroups();
+        if (boolDriverProperty(handler(), PORT_FAILOVER, DEFAULT_PORT_FAILOVER)) {
+            portFailover = new BcmPortFailover(nextTranslator, translationContext, groupTracker,
+                                               tableOccupancy, nextIdLocks, callbackDispatcher);
+            BcmPortFailover.register(portFailover);
+        }
+    }
 
-        filteringTranslator = new FilteringObjectiveTranslator(deviceId, capabilities);
-        forwardingTranslator = new ForwardingObjectiveTranslator(deviceId, capabilities, bcmObjectiveStore);
-        nextTranslator = new NextObjectiveTranslator(deviceId, capabilities, bcmObjectiveStore);
+    private void restoreNextGroups() {
+        // Groups of the next objectives already applied, e.g. before a
+        // mastership change, which might not have the ID of their next.
+        final Map<Integer, Group> groups = Maps.newHashMap();
+        for (Group group : groupService.getGroups(deviceId)) {
+            if (group.appCookie() instanceof PiGroupKey) {
+                groups.put(((PiGroupKey) group.appCookie()).groupId(), group);
+            }
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        int restored = 0;
+        for (Map.Entry<Integer, NextGroup> entry : flowObjectiveStore.getAllGroups().entrySet()) {
+            final BcmNextGroup nextGroup;
+            try {
+                nextGroup = KRYO.deserialize(entry.getValue().data());
+            } catch (RuntimeException e) {
+                // Stored by another pipeliner or by an older version.
+                continue;
+            }
+            final Group group = nextGroup == null || !deviceId.equals(nextGroup.deviceId())
+                    ? null : groups.get(nextGroup.groupId());
+            if (group != null) {
+                nextGroups.restore(entry.getKey(), group);
+                restored++;
+            }
+        }
+        log.debug("Restored the groups of {} next(s) of {}", restored, deviceId);
     }
 
     @Override
     public void filter(FilteringObjective obj) {
-        ObjectiveTranslation result = filteringTranslator.translate(obj);
-        handleResult(obj, result);
+        submit(filterKey(obj), obj, () -> doFilter(obj));
     }
 
     @Override
     public void forward(ForwardingObjective obj) {
+        submit(forwardKey(obj), obj, () -> doForward(obj));
+    }
+
+    @Override
+    public void next(NextObjective obj) {
+        submit(nextKey(obj), obj, () -> doNext(obj));
+    }
+
+    /**
+     * Translates and applies the given filtering objectives in bulk. Each
+     * objective is still notified of its own success or failure.
+     *
+     * @param objs filtering objectives
+     */
+    public void filter(Collection<FilteringObjective> objs) {
+        submitBulk(objs, this::filterKey, this::doFilter);
+    }
+
+    /**
+     * Translates and applies the given forwarding objectives in bulk. Each
+     * objective is still notified of its own success or failure.
+     *
+     * @param objs forwarding objectives
+     */
+    public void forward(Collection<ForwardingObjective> objs) {
+        submitBulk(objs, this::forwardKey, this::doForward);
+    }
+
+    /**
+     * Translates and applies the given next objectives in bulk. Each
+     * objective is still notified of its own success or failure.
+     *
+     * @param objs next objectives
+     */
+    public void next(Collection<NextObjective> objs) {
+        submitBulk(objs, this::nextKey, this::doNext);
+    }
+
+    private int filterKey(FilteringObjective obj) {
+        // Filtering objectives are ordered by match key.
+        return Objects.hash(obj.key(), obj.conditions());
+    }
+
+    private int forwardKey(ForwardingObjective obj) {
+        // Forwarding objectives are ordered by match key, objectives sharing
+        // the same nextId are synchronized by means of nextIdLocks.
+        return obj.selector().hashCode();
+    }
+
+    private int nextKey(NextObjective obj) {
+        // Next objectives are ordered by nextId.
+        return obj.id();
+    }
+
+    /**
+     * Returns the number of objectives waiting to be translated and applied
+     * by all BCM pipeliners.
+     *
+     * @return queue depth
+     */
+    public int queueDepth() {
+        return BcmObjectiveExecutor.shared().queueDepth();
+    }
+
+    private void submit(int key, Objective obj, Runnable task) {
+        final Runnable guardedTask = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error(format("Unable to process %s on %s: %s",
+                                 obj.getClass().getSimpleName(), deviceId, obj), e);
+                fail(obj, ObjectiveError.UNKNOWN);
+            }
+        };
+        // Objectives are translated and applied asynchronously, off the caller
+        // thread, by an executor shared with the other devices.
+        final BcmObjectiveExecutor objectiveExecutor = BcmObjectiveExecutor.shared();
+        if (!objectiveExecutor.execute(key, guardedTask, objectiveQueueWaitMillis)) {
+            queueFull(objectiveExecutor, key, Collections.singletonList(obj));
+        }
+    }
+
+    private <T extends Objective> void submitBulk(Collection<T> objs, ToIntFunction<T> keyFunction,
+                                                  Consumer<List<T>> bulkTask) {
+        // Objectives handled by the same worker are processed as one unit,
+        // this preserves the per-key ordering with single objectives.
+        final BcmObjectiveExecutor objectiveExecutor = BcmObjectiveExecutor.shared();
+        final Map<Integer, List<T>> objsByWorker = objs.stream().collect(Collectors.groupingBy(
+                obj -> objectiveExecutor.workerIndex(keyFunction.applyAsInt(obj)),
+                LinkedHashMap::new, Collectors.toList()));
+        objsByWorker.values().forEach(workerObjs -> {
+            final int key = keyFunction.applyAsInt(workerObjs.get(0));
+            final Runnable guardedTask = () -> {
+                try {
+                    bulkTask.accept(workerObjs);
+                } catch (RuntimeException e) {
+                    log.error(format("Unable to process %d objective(s) on %s",
+                                     workerObjs.size(), deviceId), e);
+                    workerObjs.forEach(obj -> fail(obj, ObjectiveError.UNKNOWN));
+                }
+            };
+            if (!objectiveExecutor.execute(key, guardedTask, objectiveQueueWaitMillis)) {
+                queueFull(objectiveExecutor, key, workerObjs);
+            }
+        });
+    }
+
+    private void queueFull(BcmObjectiveExecutor objectiveExecutor, int key, Collection<? extends Objective> objs) {
+        // Like a full table, and unlike translation errors, the objectives
+        // can succeed if retried later. A reroute can fail many objectives
+        // at once, these are logged at most once per interval.
+        objs.forEach(obj -> fail(obj, ObjectiveError.INSTALLATIONTHRESHOLDEXCEEDED));
+        queueFullFailures.addAndGet(objs.size());
+        final long now = System.currentTimeMillis();
+        final long last = queueFullLogMillis.get();
+        if (now - last >= QUEUE_FULL_LOG_INTERVAL_MILLIS && queueFullLogMillis.compareAndSet(last, now)) {
+            log.warn("Objective queue is full ({}/{}), failed {} objective(s) on {} since the last warning",
+                     objectiveExecutor.queueDepth(key), objectiveExecutor.queueCapacity(),
+                     queueFullFailures.getAndSet(0), deviceId);
+        }
+    }
+
+    private void doFilter(FilteringObjective obj) {
+        ObjectiveTranslation result = filteringTranslator.translate(translationContext, obj);
+        handleResult(obj, result);
+    }
+
+    private void doFilter(List<FilteringObjective> objs) {
+        handleResults(objs, filteringTranslator.translate(translationContext, objs));
+    }
+
+    private void doForward(ForwardingObjective obj) {
+        if (obj.nextId() == null) {
+            // Nothing to synchronize with next objectives.
+            handleResult(obj, forwardingTranslator.translate(translationContext, obj));
+            return;
+        }
+
+        final Lock lock = nextIdLocks.get(obj.nextId());
         try {
-            fwdNextObjLock.lock();
+            lock.lock();
 
-            if (obj.nextId() != null && bcmObjectiveStore.popStoredNextObjective(obj.nextId()) == null) {
-                // Next objective is not ready yet
-                bcmObjectiveStore.putForwardingObjective(obj);
+            if (parkIfNextMissing(obj)) {
+                return;
             }
 
-            ObjectiveTranslation result = forwardingTranslator.translate(obj);
+            ObjectiveTranslation result = forwardingTranslator.translate(translationContext, obj);
             handleResult(obj, result);
         } finally {
-            fwdNextObjLock.unlock();
+            lock.unlock();
         }
     }
 
-    @Override
-    public void next(NextObjective obj) {
+    private void doForward(List<ForwardingObjective> objs) {
+        final Set<Integer> nextIds = objs.stream()
+                .map(ForwardingObjective::nextId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        // Locks are acquired in a consistent order, see Striped#bulkGet.
+        final Iterable<Lock> locks = nextIdLocks.bulkGet(nextIds);
+        locks.forEach(Lock::lock);
+        try {
+            final List<ForwardingObjective> toTranslate = objs.stream()
+                    .filter(obj -> !parkIfNextMissing(obj))
+                    .collect(Collectors.toList());
+            handleResults(toTranslate, forwardingTranslator.translate(translationContext, toTranslate));
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    private void doNext(List<NextObjective> objs) {
+        // Objectives are processed in order, runs of objectives translated in
+        // bulk are cut by the ones handled one at a time.
+        List<NextObjective> run = Lists.newArrayList();
+        for (NextObjective obj : objs) {
+            if (obj.op() == Objective.Operation.VERIFY || obj.op() == Objective.Operation.MODIFY) {
+                doNextRun(run);
+                run = Lists.newArrayList();
+                doNext(obj);
+            } else {
+                run.add(obj);
+            }
+        }
+        doNextRun(run);
+    }
+
+    private void doNextRun(List<NextObjective> toTranslate) {
+        if (toTranslate.isEmpty()) {
+            return;
+        }
+        final List<ForwardingObjective> fwds = Lists.newArrayList();
+        final Iterable<Lock> locks = nextIdLocks.bulkGet(
+                toTranslate.stream().map(NextObjective::id).collect(Collectors.toSet()));
+        locks.forEach(Lock::lock);
+        try {
+            handleResults(toTranslate, nextTranslator.translate(translationContext, toTranslate));
+            toTranslate.forEach(obj -> fwds.addAll(updateStoredNextObjective(obj)));
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+
+        if (!fwds.isEmpty()) {
+            forward(fwds);
+        }
+    }
+
+    private void doNext(NextObjective obj) {
         if (obj.op() == Objective.Operation.VERIFY) {
             // TODO: support VERIFY operation
             log.debug("VERIFY operation not yet supported for NextObjective, will return success");
@@ -125,27 +480,109 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
         }
 
         if (obj.op() == Objective.Operation.MODIFY) {
-            // TODO: support MODIFY operation
-            log.warn("MODIFY operation not yet supported for NextObjective, will return failure :(");
-            fail(obj, ObjectiveError.UNSUPPORTED);
+            modifyNext(obj);
             return;
         }
 
+        final Collection<ForwardingObjective> fwds;
+        final Lock lock = nextIdLocks.get(obj.id());
         try {
-            fwdNextObjLock.lock();
-            ObjectiveTranslation result = nextTranslator.translate(obj);
+            lock.lock();
+            ObjectiveTranslation result = nextTranslator.translate(translationContext, obj);
             handleResult(obj, result);
 
-            bcmObjectiveStore.putNextObjective(obj);
+            fwds = updateStoredNextObjective(obj);
         } finally {
-            fwdNextObjLock.unlock();
+            lock.unlock();
         }
 
         // TODO: verify if this is fine or not
-        Collection<ForwardingObjective> fwds = bcmObjectiveStore.popAssociatedFwdObjectives(obj.id());
         fwds.forEach(this::forward);
     }
 
+    /**
+     * Parks the given forwarding objective if it cannot be translated until
+     * its next objective is received. Must be called while holding the lock
+     * of the nextId.
+     *
+     * @param obj forwarding objective
+     * @return true if the objective has been parked
+     */
+    private boolean parkIfNextMissing(ForwardingObjective obj) {
+        if (ForwardingObjectiveTranslator.requiresNextObjective(obj)
+                && bcmObjectiveStore.getNextObjective(obj.nextId()) == null) {
+            // Next objective is not ready yet
+            bcmObjectiveStore.parkForwardingObjective(obj);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Modifies the given next objective, updating its groups with the new
+     * buckets. Forwarding objectives using it are not re-translated.
+     *
+     * @param obj next objective
+     */
+    private void modifyNext(NextObjective obj) {
+        final Lock lock = nextIdLocks.get(obj.id());
+        try {
+            lock.lock();
+            if (flowObjectiveStore.getNextGroup(obj.id()) == null) {
+                log.warn("Unable to modify next objective {} on {}, next group not found", obj.id(), deviceId);
+                fail(obj, ObjectiveError.GROUPMISSING);
+                return;
+            }
+            final ObjectiveTranslation result = nextTranslator.translate(translationContext, obj);
+            if (!result.error().isPresent() && result.groups().isEmpty()) {
+                // Simple L2 next objectives are merged in the flow rules of
+                // their forwarding objectives, which are not re-translated.
+                log.warn("MODIFY operation not supported for {} next objective {}", obj.type(), obj.id());
+                fail(obj, ObjectiveError.UNSUPPORTED);
+                return;
+            }
+            // Groups are updated in place with the new buckets, unless shared
+            // with other next objectives, see processNextGroup.
+            handleResult(obj, result);
+            bcmObjectiveStore.putNextObjective(obj);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the local copy of the given next objective, returning the
+     * forwarding objectives that were waiting for it. Must be called while
+     * holding the lock of the nextId.
+     *
+     * @param obj next objective
+     * @return forwarding objectives to process
+     */
+    private Collection<ForwardingObjective> updateStoredNextObjective(NextObjective obj) {
+        if (obj.op() == Objective.Operation.REMOVE) {
+            bcmObjectiveStore.removeNextObjective(obj.id());
+            return Collections.emptyList();
+        }
+        bcmObjectiveStore.putNextObjective(obj);
+        return bcmObjectiveStore.popAssociatedFwdObjectives(obj.id());
+    }
+
+    /**
+     * Returns statistics of the forwarding objectives waiting for their next
+     * objective.
+     *
+     * @return parked objectives statistics
+     */
+    public BcmObjectiveStore.ParkedObjectivesStats parkedObjectivesStats() {
+        return bcmObjectiveStore.parkedObjectivesStats();
+    }
+
+    private void evictParkedObjective(ForwardingObjective obj) {
+        log.warn("Next objective {} not received within the parking timeout on {}, failing {}",
+                 obj.nextId(), deviceId, obj);
+        fail(obj, ObjectiveError.GROUPMISSING);
+    }
+
     @Override
     public List<String> getNextMappings(NextGroup nextGroup) {
         final BcmNextGroup bcmNextGroup = KRYO.deserialize(nextGroup.data());
@@ -155,69 +592,228 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
     }
 
     private void handleResult(Objective obj, ObjectiveTranslation result) {
+        final FlowRuleAccumulator.Request request = processResult(obj, result);
+        if (request != null) {
+            flowRuleAccumulator.submit(request);
+        }
+    }
+
+    private void handleResults(List<? extends Objective> objs, List<ObjectiveTranslation> results) {
+        // Flow rules of all objectives are applied at once, bypassing the
+        // accumulator since this is already a large batch.
+        final List<FlowRuleAccumulator.Request> requests = Lists.newArrayList();
+        for (int i = 0; i < objs.size(); i++) {
+            final FlowRuleAccumulator.Request request = processResult(objs.get(i), results.get(i));
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        flowRuleAccumulator.apply(requests);
+    }
+
+    /**
+     * Applies the groups of the given translation and returns the request to
+     * apply its flow rules, if any. When no request is returned, the objective
+     * has already been completed.
+     */
+    private FlowRuleAccumulator.Request processResult(Objective obj, ObjectiveTranslation result) {
         if (result.error().isPresent()) {
             fail(obj, result.error().get());
-            return;
+            return null;
+        }
+        if (obj instanceof NextObjective && result.groups().size() == 1 && result.flowRules().isEmpty()) {
+            processNextGroup((NextObjective) obj, result.groups().iterator().next());
+            return null;
         }
-        processGroups(obj, result.groups());
-        processFlows(obj, result.flowRules());
+        // Fail fast instead of overflowing the device tables.
+        final ObjectiveError overflow = tableOccupancy.reserve(obj, result);
+        if (overflow != null) {
+            fail(obj, overflow);
+            return null;
+        }
+        // Success or failure is signaled once both groups and flow rules
+        // have been applied, flow rules count as a single part.
+        final ObjectiveCompletion completion = new ObjectiveCompletion(
+                obj, result.groups().size() + 1, callbackDispatcher);
+        processGroups(obj, obj.op(), result.groups(), completion, null, () -> true);
         if (obj instanceof NextObjective) {
             handleNextGroup((NextObjective) obj);
         }
-        success(obj);
+        return processFlows(obj, result.flowRules(), completion);
     }
 
-    private void processFlows(Objective objective, Collection<FlowRule> flowRules) {
+    private void processNextGroup(NextObjective obj, GroupDescription group) {
+        // Next objectives with the same buckets share the same group, the
+        // group operation to apply is given by the shared groups.
+        final SharedNextGroups.GroupUpdate update = nextGroups.update(
+                obj, group, u -> u.op() == null
+                        || tableOccupancy.reserve(u.op(), Collections.emptyList(), u.groups()) == null);
+        if (update == null) {
+            fail(obj, ObjectiveError.INSTALLATIONTHRESHOLDEXCEEDED);
+            return;
+        }
+        final ObjectiveCompletion completion = new ObjectiveCompletion(
+                obj, update.groups().size() + 1, callbackDispatcher);
+        // Forwarding flow rules of a next objective moved to another group
+        // are pointed to it once the group exists, as the flow rule part.
+        final boolean moved = update.previousGroupId() >= 0;
+        final Runnable onAdded = !moved ? null : () -> repointForwardingFlowRules(
+                obj.id(), update.previousGroupId(), update.groupId(), completion);
+        processGroups(obj, update.op(), update.groups(), completion, onAdded, () -> {
+            final boolean release = nextGroups.rollback(update);
+            if (update.op() == Objective.Operation.ADD) {
+                // The next objective left the group.
+                putNextGroup(obj);
+            }
+            return release;
+        });
+        handleNextGroup(obj);
+        if (!moved) {
+            // No flow rules.
+            completion.partDone();
+        }
+    }
+
+    private void repointForwardingFlowRules(int nextId, int previousGroupId, int groupId,
+                                            ObjectiveCompletion completion) {
+        final TrafficTreatment previous = DefaultTrafficTreatment.builder()
+                .piTableAction(PiActionProfileGroupId.of(previousGroupId))
+                .build();
+        final TrafficTreatment treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(PiActionProfileGroupId.of(groupId))
+                .build();
+        // Same flow ID, the flow rules are modified in place.
+        final BcmObjectiveStore.FlowRulesRewrite rewrite = bcmObjectiveStore.rewriteForwardingFlowRules(
+                nextId, rule -> !rule.treatment().equals(previous) ? rule
+                        : DefaultFlowRule.builder()
+                                .withCookie(rule.id().value())
+                                .forDevice(rule.deviceId())
+                                .forTable(rule.table())
+                                .withSelector(rule.selector())
+                                .withTreatment(treatment)
+                                .withPriority(rule.priority())
+                                .makePermanent()
+                                .build());
+        final List<FlowRule> flowRules = rewrite.flowRules();
         if (flowRules.isEmpty()) {
+            completion.partDone();
             return;
         }
-        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        log.debug("Pointing {} flow rule(s) of next {} on {} from group {} to group {}",
+                  flowRules.size(), nextId, deviceId, previousGroupId, groupId);
+        flowRuleAccumulator.submit(new FlowRuleAccumulator.Request(
+                true, flowRules,
+                () -> {
+                    rewrite.commit();
+                    completion.partDone();
+                },
+                () -> {
+                    log.warn("Unable to point {} flow rule(s) of next {} on {} to group {}",
+                             flowRules.size(), nextId, deviceId, groupId);
+                    completion.partFailed(ObjectiveError.FLOWINSTALLATIONFAILED);
+                }));
+    }
+
+    private FlowRuleAccumulator.Request processFlows(Objective objective, Collection<FlowRule> flowRules,
+                                                     ObjectiveCompletion completion) {
+        if (flowRules.isEmpty() || completion.isCompleted()) {
+            completion.partDone();
+            return null;
+        }
+        final boolean add;
         switch (objective.op()) {
             case ADD:
             case ADD_TO_EXISTING:
-                flowRules.forEach(ops::add);
+                add = true;
                 break;
             case REMOVE:
             case REMOVE_FROM_EXISTING:
-                flowRules.forEach(ops::remove);
+                add = false;
                 break;
             default:
                 log.warn("Unsupported Objective operation '{}'", objective.op());
-                return;
+                completion.partDone();
+                return null;
         }
-        flowRuleService.apply(ops.build());
+        final Runnable onSuccess;
+        if (objective instanceof ForwardingObjective && objective.op() == Objective.Operation.ADD) {
+            // Memoized only once installed, a failed ADD must not be replayed
+            // by a later REMOVE.
+            onSuccess = () -> {
+                bcmObjectiveStore.putForwardingFlowRules((ForwardingObjective) objective, flowRules);
+                completion.partDone();
+            };
+        } else {
+            onSuccess = completion::partDone;
+        }
+        return new FlowRuleAccumulator.Request(
+                add, flowRules,
+                onSuccess,
+                () -> {
+                    if (add) {
+                        tableOccupancy.releaseFlows(flowRules);
+                    }
+                    completion.partFailed(ObjectiveError.FLOWINSTALLATIONFAILED);
+                });
     }
 
-    private void processGroups(Objective objective, Collection<GroupDescription> groups) {
+    /**
+     * Applies the given groups. When a group operation is rejected by the
+     * device, the given rollback is invoked and the reservation of the group
+     * is released if the rollback returns true.
+     */
+    private void processGroups(Objective objective, Objective.Operation op,
+                               Collection<GroupDescription> groups, ObjectiveCompletion completion,
+                               Runnable onAdded, BooleanSupplier rollback) {
         if (groups.isEmpty()) {
             return;
         }
-        switch (objective.op()) {
+        switch (op) {
             case ADD:
-                groups.forEach(groupService::addGroup);
+                groups.forEach(group -> groupTracker.addGroup(group, completion, onAdded, release(
+                        rollback, Objective.Operation.REMOVE, group)));
                 break;
             case REMOVE:
-                groups.forEach(group -> groupService.removeGroup(
-                        deviceId, group.appCookie(), objective.appId()));
+                groups.forEach(group -> groupTracker.removeGroup(group, objective.appId(), completion));
                 break;
             case ADD_TO_EXISTING:
-                groups.forEach(group -> groupService.addBucketsToGroup(
-                        deviceId, group.appCookie(), group.buckets(),
-                        group.appCookie(), group.appId())
-                );
+                groups.forEach(group -> groupTracker.addBuckets(group, completion, release(
+                        rollback, Objective.Operation.REMOVE_FROM_EXISTING, group)));
                 break;
             case REMOVE_FROM_EXISTING:
-                groups.forEach(group -> groupService.removeBucketsFromGroup(
-                        deviceId, group.appCookie(), group.buckets(),
-                        group.appCookie(), group.appId())
-                );
+                groups.forEach(group -> groupTracker.removeBuckets(group, completion, () -> {
+                    // Buckets still on the device are accounted back.
+                    if (rollback.getAsBoolean()) {
+                        tableOccupancy.restoreBuckets(group);
+                    }
+                }));
+                break;
+            case MODIFY:
+                groups.forEach(group -> {
+                    // Buckets are accounted back to the ones of the existing group.
+                    final GroupDescription existing = groupService.getGroup(deviceId, group.appCookie());
+                    groupTracker.setBuckets(group, completion, existing == null ? null : release(
+                            rollback, Objective.Operation.MODIFY, existing));
+                });
                 break;
             default:
-                log.warn("Unsupported Objective operation {}", objective.op());
+                log.warn("Unsupported Objective operation {}", op);
+                groups.forEach(group -> completion.partDone());
         }
     }
 
+    private Runnable release(BooleanSupplier rollback, Objective.Operation op, GroupDescription group) {
+        return () -> {
+            if (rollback.getAsBoolean()) {
+                tableOccupancy.reserve(op, Collections.emptyList(), ImmutableList.of(group));
+            }
+        };
+    }
+
     private void handleNextGroup(NextObjective obj) {
+        if (portFailover != null) {
+            portFailover.nextApplied(obj);
+        }
         switch (obj.op()) {
             case REMOVE:
                 removeNextGroup(obj);
@@ -247,7 +843,8 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
                 .map(this::nextTreatmentToMappingString)
                 .filter(Objects::nonNull)
                 .collect(Collectors.toList());
-        final BcmNextGroup nextGroup = new BcmNextGroup(obj.type(), nextMappings, obj.nextTreatments());
+        final BcmNextGroup nextGroup = new BcmNextGroup(obj.type(), nextMappings, obj.nextTreatments(),
+                                                        deviceId, nextGroups.groupIdOrNone(obj.id()));
         flowObjectiveStore.putNextGroup(obj.id(), nextGroup);
     }
 
@@ -274,11 +871,18 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
         private final NextObjective.Type type;
         private final List<String> nextMappings;
         Collection<NextTreatment> nextTreatments;
+        // Group of the next objective, which might be shared with other
+        // next objectives, restored at init.
+        private final DeviceId deviceId;
+        private final int groupId;
 
-        BcmNextGroup(NextObjective.Type type, List<String> nextMappings, Collection<NextTreatment> nextTreatments) {
+        BcmNextGroup(NextObjective.Type type, List<String> nextMappings, Collection<NextTreatment> nextTreatments,
+                     DeviceId deviceId, int groupId) {
             this.type = type;
             this.nextMappings = ImmutableList.copyOf(nextMappings);
             this.nextTreatments = ImmutableList.copyOf(nextTreatments);
+            this.deviceId = deviceId;
+            this.groupId = groupId;
         }
 
         NextObjective.Type type() {
@@ -293,6 +897,14 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
             return nextTreatments;
         }
 
+        DeviceId deviceId() {
+            return deviceId;
+        }
+
+        int groupId() {
+            return groupId;
+        }
+
         @Override
         public byte[] data() {
             return KRYO.serialize(this);
@@ -300,15 +912,10 @@ public class BcmPipeliner extends AbstractHandlerBehaviour implements Pipeliner
     }
 
     private void fail(Objective objective, ObjectiveError error) {
-        CompletableFuture.runAsync(
-                () -> objective.context().ifPresent(
-                        ctx -> ctx.onError(objective, error)), callbackExecutor);
-
+        callbackDispatcher.fail(objective, error);
     }
 
     private void success(Objective objective) {
-        CompletableFuture.runAsync(
-                () -> objective.context().ifPresent(
-                        ctx -> ctx.onSuccess(objective)), callbackExecutor);
+        callbackDispatcher.success(objective);
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.pi.runtime.PiPacketMetadata;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static org.onlab.util.ImmutableByteSequence.copyFrom;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.HDR_PACKET_OUT_EGRESS_PHYSICAL_PORT;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.PORT_BITWIDTH;
+
+/**
+ * Cache of the ports of each device, as needed to build packet-outs. Entries
+ * are built from the device service when first requested, and invalidated
+ * on device and port events (see {@link PipeconfLoader}).
+ */
+final class BcmPortCache {
+
+    private static final Logger log = getLogger(BcmPortCache.class);
+
+    private static final ConcurrentMap<DeviceId, DevicePorts> DEVICE_PORTS = Maps.newConcurrentMap();
+    // Incremented on each invalidation, ports loaded concurrently with an
+    // invalidation are not cached.
+    private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
+    private BcmPortCache() {
+        // Hide constructor.
+    }
+
+    /**
+     * Returns the cached ports of the given device, loading them from the
+     * device service if needed.
+     *
+     * @param deviceService device service
+     * @param deviceId      device ID
+     * @return device ports
+     */
+    static DevicePorts devicePorts(DeviceService deviceService, DeviceId deviceId) {
+        final DevicePorts cached = DEVICE_PORTS.get(deviceId);
+        if (cached != null) {
+            return cached;
+        }
+        // Not using computeIfAbsent, the device service must not be queried
+        // while holding a lock of the map.
+        final long invalidations = INVALIDATIONS.get();
+        final DevicePorts loaded = load(deviceService, deviceId);
+        if (INVALIDATIONS.get() != invalidations) {
+            return loaded;
+        }
+        final DevicePorts previous = DEVICE_PORTS.putIfAbsent(deviceId, loaded);
+        if (previous != null) {
+            return previous;
+        }
+        // An invalidation may have completed between the check and the put.
+        if (INVALIDATIONS.get() != invalidations) {
+            DEVICE_PORTS.remove(deviceId, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Invalidates the cached ports of the given device.
+     *
+     * @param deviceId device ID
+     */
+    static void invalidate(DeviceId deviceId) {
+        INVALIDATIONS.incrementAndGet();
+        DEVICE_PORTS.remove(deviceId);
+    }
+
+    /**
+     * Invalidates the cached ports of all devices.
+     */
+    static void clear() {
+        INVALIDATIONS.incrementAndGet();
+        DEVICE_PORTS.clear();
+    }
+
+    /**
+     * Returns the packet-out metadata for the given egress port.
+     *
+     * @param portNumber egress port
+     * @return packet metadata
+     * @throws IllegalArgumentException if the port number does not fit in
+     *                                  the port metadata bitwidth
+     */
+    static PiPacketMetadata egressPortMetadata(long portNumber) {
+        // Make sure port number can fit in v1model port metadata bitwidth.
+        final ImmutableByteSequence portBytes;
+        try {
+            portBytes = copyFrom(portNumber).fit(PORT_BITWIDTH);
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new IllegalArgumentException(format(
+                    "Port number %d too big, %s", portNumber, e.getMessage()));
+        }
+        return PiPacketMetadata.builder()
+                .withId(HDR_PACKET_OUT_EGRESS_PHYSICAL_PORT)
+                .withValue(portBytes)
+                .build();
+    }
+
+    private static DevicePorts load(DeviceService deviceService, DeviceId deviceId) {
+        final ImmutableMap.Builder<PortNumber, PortInfo> ports = ImmutableMap.builder();
+        final ImmutableList.Builder<PiPacketMetadata> floodMetadata = ImmutableList.builder();
+        for (Port port : deviceService.getPorts(deviceId)) {
+            if (port.number().isLogical()) {
+                continue;
+            }
+            PiPacketMetadata egressMetadata = null;
+            try {
+                egressMetadata = egressPortMetadata(port.number().toLong());
+            } catch (IllegalArgumentException e) {
+                log.warn("Port {} of {} cannot be used for packet-outs: {}",
+                         port.number(), deviceId, e.getMessage());
+            }
+            ports.put(port.number(), new PortInfo(port.type(), port.isEnabled(), egressMetadata));
+            if (port.isEnabled() && egressMetadata != null) {
+                floodMetadata.add(egressMetadata);
+            }
+        }
+        return new DevicePorts(ports.build(), floodMetadata.build());
+    }
+
+    /**
+     * Ports of a device.
+     */
+    static final class DevicePorts {
+
+        private final Map<PortNumber, PortInfo> ports;
+        private final List<PiPacketMetadata> floodMetadata;
+
+        private DevicePorts(Map<PortNumber, PortInfo> ports, List<PiPacketMetadata> floodMetadata) {
+            this.ports = ports;
+            this.floodMetadata = floodMetadata;
+        }
+
+        /**
+         * Returns the given physical port.
+         *
+         * @param portNumber port number
+         * @return port, or null if the port is unknown
+         */
+        PortInfo port(PortNumber portNumber) {
+            return ports.get(portNumber);
+        }
+
+        /**
+         * Returns the egress port metadata of the ports eligible for
+         * flooding, i.e. enabled physical ports.
+         *
+         * @return packet metadata, one per port
+         */
+        List<PiPacketMetadata> floodMetadata() {
+            return floodMetadata;
+        }
+    }
+
+    /**
+     * Physical port of a device.
+     */
+    static final class PortInfo {
+
+        private final Port.Type type;
+        private final boolean enabled;
+        private final PiPacketMetadata egressMetadata;
+
+        private PortInfo(Port.Type type, boolean enabled, PiPacketMetadata egressMetadata) {
+            this.type = type;
+            this.enabled = enabled;
+            this.egressMetadata = egressMetadata;
+        }
+
+        /**
+         * Returns the port type.
+         *
+         * @return port type
+         */
+        Port.Type type() {
+            return type;
+        }
+
+        /**
+         * Returns true if the port is enabled.
+         *
+         * @return true if enabled
+         */
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Returns the packet-out metadata to send packets on this port.
+         *
+         * @return packet metadata, or null if the port number does not fit in
+         * the port metadata bitwidth
+         */
+        PiPacketMetadata egressMetadata() {
+            return egressMetadata;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.Striped;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.DefaultNextTreatment;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.NextTreatment;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupDescription;
+import org.slf4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.isL3NextObj;
+
+/**
+ * Fast failover of the groups of the next objectives of a device. Next
+ * objective buckets are indexed by output port as next objectives are
+ * applied. When a port goes down, its buckets are removed from all the groups
+ * at once, without waiting for the next objectives to be updated one at a
+ * time. They are added back when the port comes up again, unless any next
+ * objective of the group has been updated in the meantime. Port events are
+ * given by {@link PipeconfLoader}.
+ * <p>
+ * Bucket updates are confirmed by the {@link GroupCompletionTracker}, the
+ * shared groups and the occupancy are restored if the device rejects them.
+ */
+final class BcmPortFailover {
+
+    private static final Logger log = getLogger(BcmPortFailover.class);
+
+    private static final ConcurrentMap<DeviceId, BcmPortFailover> FAILOVERS = Maps.newConcurrentMap();
+
+    private final DeviceId deviceId;
+    private final NextObjectiveTranslator translator;
+    private final TranslationContext ctx;
+    private final GroupCompletionTracker groupTracker;
+    private final BcmTableOccupancy occupancy;
+    private final Striped<Lock> nextIdLocks;
+    private final ObjectiveCallbackDispatcher dispatcher;
+
+    // Guarded by this.
+    private final Map<Integer, IndexedNext> nexts = Maps.newHashMap();
+    private final SetMultimap<PortNumber, Integer> nextIdsByPort = HashMultimap.create();
+    private final ListMultimap<PortNumber, GroupDescription> removedBuckets = ArrayListMultimap.create();
+
+    /**
+     * Creates a new failover handler.
+     *
+     * @param translator   next objective translator
+     * @param ctx          translation context of the device
+     * @param groupTracker group completion tracker of the device
+     * @param occupancy    table occupancy of the device
+     * @param nextIdLocks  locks serializing the objectives of a nextId
+     * @param dispatcher   dispatcher of the objective callbacks
+     */
+    BcmPortFailover(NextObjectiveTranslator translator, TranslationContext ctx,
+                    GroupCompletionTracker groupTracker, BcmTableOccupancy occupancy,
+                    Striped<Lock> nextIdLocks, ObjectiveCallbackDispatcher dispatcher) {
+        this.deviceId = ctx.deviceId();
+        this.translator = checkNotNull(translator);
+        this.ctx = ctx;
+        this.groupTracker = checkNotNull(groupTracker);
+        this.occupancy = checkNotNull(occupancy);
+        this.nextIdLocks = checkNotNull(nextIdLocks);
+        this.dispatcher = checkNotNull(dispatcher);
+    }
+
+    /**
+     * Registers the given failover handler as the one of its device,
+     * replacing the previous one, if any.
+     *
+     * @param failover failover handler
+     */
+    static void register(BcmPortFailover failover) {
+        FAILOVERS.put(failover.deviceId, failover);
+    }
+
+    /**
+     * Removes the failover handler of the given device.
+     *
+     * @param deviceId device ID
+     */
+    static void remove(DeviceId deviceId) {
+        FAILOVERS.remove(deviceId);
+    }
+
+    /**
+     * Removes the failover handlers of all devices.
+     */
+    static void clear() {
+        FAILOVERS.clear();
+    }
+
+    /**
+     * Handles a change of the given port, removing or restoring its buckets
+     * if the device has a failover handler.
+     *
+     * @param deviceId device ID
+     * @param port     port
+     * @param removed  true if the port has been removed
+     */
+    static void portChanged(DeviceId deviceId, Port port, boolean removed) {
+        final BcmPortFailover failover = FAILOVERS.get(deviceId);
+        if (failover != null) {
+            failover.submit(port.number(), removed || !port.isEnabled());
+        }
+    }
+
+    /**
+     * Updates the index with the given next objective, once applied.
+     *
+     * @param obj next objective
+     */
+    synchronized void nextApplied(NextObjective obj) {
+        if (obj.op() == Objective.Operation.REMOVE) {
+            unindex(obj.id());
+            return;
+        }
+        // Only next objectives translated to groups.
+        if (obj.type() != NextObjective.Type.HASHED && !isL3NextObj(obj)) {
+            return;
+        }
+        final IndexedNext next = obj.op() == Objective.Operation.ADD || obj.op() == Objective.Operation.MODIFY
+                ? new IndexedNext(obj) : nexts.getOrDefault(obj.id(), new IndexedNext(obj));
+        for (NextTreatment nextTreatment : obj.nextTreatments()) {
+            final PortNumber port = BcmPipelineUtils.outputPort(nextTreatment);
+            if (port == null || nextTreatment.type() != NextTreatment.Type.TREATMENT) {
+                continue;
+            }
+            final TrafficTreatment treatment = ((DefaultNextTreatment) nextTreatment).treatment();
+            if (obj.op() == Objective.Operation.REMOVE_FROM_EXISTING) {
+                next.treatments.remove(port, treatment);
+            } else {
+                next.treatments.put(port, treatment);
+            }
+        }
+        unindex(obj.id());
+        nexts.put(obj.id(), next);
+        next.treatments.keySet().forEach(port -> nextIdsByPort.put(port, obj.id()));
+    }
+
+    private void unindex(int nextId) {
+        final IndexedNext previous = nexts.remove(nextId);
+        if (previous != null) {
+            previous.treatments.keySet().forEach(port -> nextIdsByPort.remove(port, nextId));
+        }
+    }
+
+    private void submit(PortNumber port, boolean down) {
+        final Runnable task = () -> {
+            try {
+                if (down) {
+                    portDown(port);
+                } else {
+                    portUp(port);
+                }
+            } catch (RuntimeException e) {
+                log.error(String.format("Unable to handle port %s of %s", port, deviceId), e);
+            }
+        };
+        if (!BcmObjectiveExecutor.shared().execute(Objects.hash(deviceId, port), task)) {
+            log.warn("Objective queue is full, unable to handle port {} of {}", port, deviceId);
+        }
+    }
+
+    private void portDown(PortNumber port) {
+        final List<NextObjective> deadBuckets;
+        synchronized (this) {
+            deadBuckets = nextIdsByPort.get(port).stream()
+                    .map(nextId -> nexts.get(nextId).removeFromExisting(nextId, port))
+                    .collect(Collectors.toList());
+        }
+        if (deadBuckets.isEmpty()) {
+            return;
+        }
+        final List<GroupDescription> removed = Lists.newArrayList();
+        final Iterable<Lock> locks = nextIdLocks.bulkGet(
+                deadBuckets.stream().map(NextObjective::id).collect(Collectors.toSet()));
+        locks.forEach(Lock::lock);
+        try {
+            for (NextObjective obj : deadBuckets) {
+                final ObjectiveTranslation result = translator.translate(ctx, obj);
+                for (GroupDescription group : result.groups()) {
+                    final Set<TrafficTreatment> actions = group.buckets().buckets().stream()
+                            .map(GroupBucket::treatment)
+                            .collect(Collectors.toSet());
+                    // Null if already removed for another next objective
+                    // sharing the same group.
+                    final GroupDescription update = ctx.nextGroups().removeBuckets(obj.id(), actions);
+                    if (update == null) {
+                        continue;
+                    }
+                    if (occupancy.reserve(Objective.Operation.REMOVE_FROM_EXISTING,
+                                          Collections.emptyList(), ImmutableList.of(update)) != null) {
+                        log.warn("Unable to account the removal of the buckets of port {} from group {} on {}",
+                                 port, update.givenGroupId(), deviceId);
+                        ctx.nextGroups().cancelRemoveBuckets(update);
+                        continue;
+                    }
+                    removed.add(update);
+                }
+            }
+            synchronized (this) {
+                removedBuckets.putAll(port, removed);
+            }
+            // All groups are updated at once.
+            removed.forEach(group -> groupTracker.removeBuckets(group, completion(group, false), () -> {
+                // Still on the device, not to be added back.
+                log.warn("Unable to remove the buckets of port {} from group {} on {}",
+                         port, group.givenGroupId(), deviceId);
+                ctx.nextGroups().cancelRemoveBuckets(group);
+                occupancy.restoreBuckets(group);
+                synchronized (this) {
+                    removedBuckets.remove(port, group);
+                }
+            }));
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        log.info("Port {} of {} is down, removing its buckets from {} group(s) of {} next(s)",
+                 port, deviceId, removed.size(), deadBuckets.size());
+    }
+
+    private void portUp(PortNumber port) {
+        final List<GroupDescription> removed;
+        final Set<Integer> nextIds;
+        synchronized (this) {
+            removed = removedBuckets.removeAll(port);
+            nextIds = ImmutableSet.copyOf(nextIdsByPort.get(port));
+        }
+        if (removed.isEmpty()) {
+            return;
+        }
+        int restored = 0;
+        final Iterable<Lock> locks = nextIdLocks.bulkGet(nextIds);
+        locks.forEach(Lock::lock);
+        try {
+            for (GroupDescription group : removed) {
+                // Only if still wanted by all the next objectives of the group.
+                final GroupDescription update = ctx.nextGroups().restoreBuckets(
+                        group, nextIds::contains,
+                        u -> occupancy.reserve(Objective.Operation.ADD_TO_EXISTING, Collections.emptyList(),
+                                               ImmutableList.of(u)) == null);
+                if (update == null) {
+                    continue;
+                }
+                groupTracker.addBuckets(update, completion(update, true), () -> {
+                    log.warn("Unable to add back the buckets of port {} to group {} on {}",
+                             port, update.givenGroupId(), deviceId);
+                    ctx.nextGroups().cancelRestoreBuckets(update);
+                    occupancy.reserve(Objective.Operation.REMOVE_FROM_EXISTING,
+                                      Collections.emptyList(), ImmutableList.of(update));
+                });
+                restored++;
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        log.info("Port {} of {} is up, restoring its buckets in {}/{} group(s)",
+                 port, deviceId, restored, removed.size());
+    }
+
+    // Completion of a bucket update of the given group, the objective has
+    // no callbacks and only describes the update when it times out.
+    private ObjectiveCompletion completion(GroupDescription group, boolean add) {
+        final DefaultNextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(group.givenGroupId())
+                .withType(NextObjective.Type.HASHED)
+                .fromApp(group.appId());
+        group.buckets().buckets().forEach(bucket -> builder.addTreatment(bucket.treatment()));
+        return new ObjectiveCompletion(add ? builder.addToExisting() : builder.removeFromExisting(), 1, dispatcher);
+    }
+
+    /**
+     * Treatments of a next objective by output port, with the objective
+     * used as template to build the objectives removing them.
+     */
+    private static final class IndexedNext {
+
+        private final NextObjective template;
+        private final ListMultimap<PortNumber, TrafficTreatment> treatments = ArrayListMultimap.create();
+
+        private IndexedNext(NextObjective template) {
+            this.template = template;
+        }
+
+        private NextObjective removeFromExisting(int nextId, PortNumber port) {
+            final DefaultNextObjective.Builder builder = DefaultNextObjective.builder()
+                    .withId(nextId)
+                    .withType(template.type())
+                    .fromApp(template.appId());
+            if (template.meta() != null) {
+                builder.withMeta(template.meta());
+            }
+            treatments.get(port).forEach(builder::addTreatment);
+            return builder.removeFromExisting();
+        }
+    }
+}
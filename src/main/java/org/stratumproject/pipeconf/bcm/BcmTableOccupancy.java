@@ -0,0 +1,445 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.slf4j.Logger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.bucketWeights;
+
+/**
+ * Occupancy of the tables and action profiles of a device, as resulting
+ * from the objectives applied by the pipeliner. Objectives which would
+ * exceed the capacity of a table or action profile are rejected before
+ * anything is written to the device.
+ * <p>
+ * Action profile occupancy counts one member per unit of bucket weight, as
+ * weighted members are replicated, i.e. an upper bound of the members
+ * actually used by the device. Members are not shared between groups, as
+ * their IDs are allocated by the ONOS core group translator.
+ * <p>
+ * Entries already on the device when the pipeliner is initialized are
+ * accounted from the flow rule and group stores, see
+ * {@link #seed(Iterable, Iterable)}. Entries installed by other means than
+ * objectives are released only once removed through an objective, occupancy
+ * is thus an upper bound.
+ */
+public final class BcmTableOccupancy {
+
+    private static final Logger log = getLogger(BcmTableOccupancy.class);
+
+    private static final ConcurrentMap<DeviceId, BcmTableOccupancy> OCCUPANCIES = Maps.newConcurrentMap();
+
+    private final DeviceId deviceId;
+    private final ToLongFunction<PiTableId> tableCapacity;
+    private final ToLongFunction<PiActionProfileId> actionProfileCapacity;
+    private final ToLongFunction<PiActionProfileId> maxGroupSize;
+    // Guarded by this.
+    private final Map<PiTableId, TableEntries> tables = Maps.newHashMap();
+    private final Map<PiActionProfileId, ActionProfileGroups> actionProfiles = Maps.newHashMap();
+
+    /**
+     * Creates a new occupancy tracker. Capacities are asked once per table
+     * and action profile, a capacity of zero means unlimited.
+     *
+     * @param deviceId              device ID
+     * @param tableCapacity         maximum number of entries of a table
+     * @param actionProfileCapacity maximum number of members of an action
+     *                              profile
+     * @param maxGroupSize          maximum number of members of a group of
+     *                              an action profile
+     */
+    BcmTableOccupancy(DeviceId deviceId,
+                      ToLongFunction<PiTableId> tableCapacity,
+                      ToLongFunction<PiActionProfileId> actionProfileCapacity,
+                      ToLongFunction<PiActionProfileId> maxGroupSize) {
+        this.deviceId = checkNotNull(deviceId);
+        this.tableCapacity = checkNotNull(tableCapacity);
+        this.actionProfileCapacity = checkNotNull(actionProfileCapacity);
+        this.maxGroupSize = checkNotNull(maxGroupSize);
+    }
+
+    /**
+     * Registers the given occupancy tracker as the one of its device,
+     * replacing the previous one, if any.
+     *
+     * @param occupancy occupancy tracker
+     */
+    static void register(BcmTableOccupancy occupancy) {
+        OCCUPANCIES.put(occupancy.deviceId, occupancy);
+    }
+
+    /**
+     * Returns the occupancy tracker of the given device, if any.
+     *
+     * @param deviceId device ID
+     * @return occupancy tracker, or null
+     */
+    public static BcmTableOccupancy get(DeviceId deviceId) {
+        return OCCUPANCIES.get(deviceId);
+    }
+
+    /**
+     * Removes the occupancy tracker of the given device.
+     *
+     * @param deviceId device ID
+     */
+    static void remove(DeviceId deviceId) {
+        OCCUPANCIES.remove(deviceId);
+    }
+
+    /**
+     * Removes the occupancy trackers of all devices.
+     */
+    static void clear() {
+        OCCUPANCIES.clear();
+    }
+
+    /**
+     * Accounts the given flow rules and groups, already present on the
+     * device, e.g. after a controller restart or a mastership change.
+     * Capacities are not checked.
+     *
+     * @param flowRules flow rules of the device
+     * @param groups    groups of the device
+     */
+    synchronized void seed(Iterable<? extends FlowRule> flowRules, Iterable<? extends GroupDescription> groups) {
+        for (FlowRule rule : flowRules) {
+            // Flow rules of other pipelines or apps might not use PI tables.
+            if (rule.table() instanceof PiTableId) {
+                table(rule.table()).add(rule);
+            }
+        }
+        groups.forEach(group -> addGroup(group, false));
+    }
+
+    /**
+     * Accounts the flow rules and groups of the given translation. When
+     * adding, nothing is accounted if any table or action profile would
+     * exceed its capacity.
+     *
+     * @param obj         objective
+     * @param translation translation of the objective
+     * @return INSTALLATIONTHRESHOLDEXCEEDED if the objective cannot be
+     * admitted, null otherwise
+     */
+    synchronized ObjectiveError reserve(Objective obj, ObjectiveTranslation translation) {
+        return reserve(obj.op(), translation.flowRules(), translation.groups());
+    }
+
+    /**
+     * Accounts the given flow rules and groups for the given operation, which
+     * might differ from the one of their objective (see
+     * {@link SharedNextGroups}).
+     *
+     * @param op        operation
+     * @param flowRules flow rules
+     * @param groups    groups
+     * @return INSTALLATIONTHRESHOLDEXCEEDED if the operation cannot be
+     * admitted, null otherwise
+     */
+    synchronized ObjectiveError reserve(Objective.Operation op, Collection<FlowRule> flowRules,
+                                        Collection<GroupDescription> groups) {
+        switch (op) {
+            case ADD:
+            case ADD_TO_EXISTING:
+            case MODIFY:
+                // Groups of a MODIFY replace the existing ones.
+                final boolean addBuckets = op == Objective.Operation.ADD_TO_EXISTING;
+                if (!fits(flowRules) || !fits(groups, addBuckets)) {
+                    return ObjectiveError.INSTALLATIONTHRESHOLDEXCEEDED;
+                }
+                flowRules.forEach(rule -> table(rule.table()).add(rule));
+                groups.forEach(group -> addGroup(group, addBuckets));
+                break;
+            case REMOVE:
+                releaseFlows(flowRules);
+                groups.forEach(this::removeGroup);
+                break;
+            case REMOVE_FROM_EXISTING:
+                releaseFlows(flowRules);
+                groups.forEach(this::removeBuckets);
+                break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Releases the given flow rules, e.g. after they failed to be installed.
+     *
+     * @param flowRules flow rules
+     */
+    synchronized void releaseFlows(Collection<FlowRule> flowRules) {
+        flowRules.forEach(rule -> {
+            final TableEntries entries = tables.get(rule.table());
+            if (entries != null) {
+                entries.remove(rule);
+            }
+        });
+    }
+
+    /**
+     * Accounts back the given buckets, e.g. after they failed to be removed
+     * from the device. Capacities are not checked, as the buckets are still
+     * on the device.
+     *
+     * @param group buckets, as a group description
+     */
+    synchronized void restoreBuckets(GroupDescription group) {
+        addGroup(group, true);
+    }
+
+    /**
+     * Returns the occupancy of the tables used so far.
+     *
+     * @return table occupancy
+     */
+    public synchronized Map<PiTableId, Usage> tableUsage() {
+        final ImmutableMap.Builder<PiTableId, Usage> usage = ImmutableMap.builder();
+        tables.forEach((tableId, entries) -> usage.put(tableId, new Usage(entries.size(), entries.capacity)));
+        return usage.build();
+    }
+
+    /**
+     * Returns the occupancy of the action profiles used so far.
+     *
+     * @return action profile occupancy, counting members
+     */
+    public synchronized Map<PiActionProfileId, Usage> actionProfileUsage() {
+        final ImmutableMap.Builder<PiActionProfileId, Usage> usage = ImmutableMap.builder();
+        actionProfiles.forEach((profileId, groups) -> usage.put(
+                profileId, new Usage(groups.members, groups.capacity)));
+        return usage.build();
+    }
+
+    private boolean fits(Collection<FlowRule> flowRules) {
+        if (flowRules.isEmpty()) {
+            return true;
+        }
+        final Map<PiTableId, Integer> added = Maps.newHashMap();
+        for (FlowRule rule : flowRules) {
+            final TableEntries entries = table(rule.table());
+            if (!entries.contains(rule)) {
+                added.merge((PiTableId) rule.table(), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<PiTableId, Integer> entry : added.entrySet()) {
+            final TableEntries entries = tables.get(entry.getKey());
+            if (entries.capacity > 0 && entries.size() + entry.getValue() > entries.capacity) {
+                log.warn("Table {} of {} is full ({}/{} entries)",
+                         entry.getKey(), deviceId, entries.size(), entries.capacity);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fits(Collection<GroupDescription> groups, boolean addBuckets) {
+        final Map<PiActionProfileId, Long> added = Maps.newHashMap();
+        for (GroupDescription group : groups) {
+            if (!(group.appCookie() instanceof PiGroupKey)) {
+                continue;
+            }
+            final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+            final ActionProfileGroups profile = actionProfile(groupKey.actionProfileId());
+            final Map<TrafficTreatment, Integer> buckets = addBuckets
+                    ? profile.withBuckets(groupKey.groupId(), group) : bucketWeights(group.buckets());
+            final int size = size(buckets);
+            if (profile.maxGroupSize > 0 && size > profile.maxGroupSize) {
+                log.warn("Group {} of {} exceeds the maximum group size of {} ({}/{} members)",
+                         groupKey.groupId(), deviceId, groupKey.actionProfileId(), size, profile.maxGroupSize);
+                return false;
+            }
+            added.merge(groupKey.actionProfileId(),
+                        (long) size - size(profile.buckets(groupKey.groupId())), Long::sum);
+        }
+        for (Map.Entry<PiActionProfileId, Long> entry : added.entrySet()) {
+            final ActionProfileGroups profile = actionProfiles.get(entry.getKey());
+            if (profile.capacity > 0 && profile.members + entry.getValue() > profile.capacity) {
+                log.warn("Action profile {} of {} is full ({}/{} members)",
+                         entry.getKey(), deviceId, profile.members, profile.capacity);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addGroup(GroupDescription group, boolean addBuckets) {
+        if (group.appCookie() instanceof PiGroupKey) {
+            final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+            final ActionProfileGroups profile = actionProfile(groupKey.actionProfileId());
+            profile.setBuckets(groupKey.groupId(), addBuckets
+                    ? profile.withBuckets(groupKey.groupId(), group) : bucketWeights(group.buckets()));
+        }
+    }
+
+    private void removeGroup(GroupDescription group) {
+        if (group.appCookie() instanceof PiGroupKey) {
+            final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+            final ActionProfileGroups profile = actionProfiles.get(groupKey.actionProfileId());
+            if (profile != null) {
+                profile.setBuckets(groupKey.groupId(), Collections.emptyMap());
+            }
+        }
+    }
+
+    private void removeBuckets(GroupDescription group) {
+        if (group.appCookie() instanceof PiGroupKey) {
+            final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+            final ActionProfileGroups profile = actionProfiles.get(groupKey.actionProfileId());
+            if (profile != null) {
+                final Map<TrafficTreatment, Integer> buckets = Maps.newHashMap(profile.buckets(groupKey.groupId()));
+                group.buckets().buckets().forEach(bucket -> buckets.remove(bucket.treatment()));
+                profile.setBuckets(groupKey.groupId(), buckets);
+            }
+        }
+    }
+
+    private static int size(Map<TrafficTreatment, Integer> buckets) {
+        int size = 0;
+        for (int weight : buckets.values()) {
+            size += weight;
+        }
+        return size;
+    }
+
+    private TableEntries table(Object tableId) {
+        // Flow rules of this pipeline always use PI table IDs.
+        return tables.computeIfAbsent((PiTableId) tableId,
+                                      id -> new TableEntries(tableCapacity.applyAsLong(id)));
+    }
+
+    private ActionProfileGroups actionProfile(PiActionProfileId profileId) {
+        return actionProfiles.computeIfAbsent(profileId, id -> new ActionProfileGroups(
+                actionProfileCapacity.applyAsLong(id), maxGroupSize.applyAsLong(id)));
+    }
+
+    /**
+     * Entries of a table, tracked by flow ID.
+     */
+    private static final class TableEntries {
+
+        private final long capacity;
+        private final Set<Long> flowIds = Sets.newHashSet();
+
+        private TableEntries(long capacity) {
+            this.capacity = capacity;
+        }
+
+        private boolean contains(FlowRule rule) {
+            return flowIds.contains(rule.id().value());
+        }
+
+        private void add(FlowRule rule) {
+            flowIds.add(rule.id().value());
+        }
+
+        private void remove(FlowRule rule) {
+            flowIds.remove(rule.id().value());
+        }
+
+        private int size() {
+            return flowIds.size();
+        }
+    }
+
+    /**
+     * Groups of an action profile, with their bucket weights by action, and
+     * their number of members.
+     */
+    private static final class ActionProfileGroups {
+
+        private final long capacity;
+        private final long maxGroupSize;
+        private final Map<Integer, Map<TrafficTreatment, Integer>> groups = Maps.newHashMap();
+        private long members;
+
+        private ActionProfileGroups(long capacity, long maxGroupSize) {
+            this.capacity = capacity;
+            this.maxGroupSize = maxGroupSize;
+        }
+
+        private Map<TrafficTreatment, Integer> buckets(int groupId) {
+            return groups.getOrDefault(groupId, Collections.emptyMap());
+        }
+
+        private Map<TrafficTreatment, Integer> withBuckets(int groupId, GroupDescription group) {
+            final Map<TrafficTreatment, Integer> buckets = Maps.newHashMap(buckets(groupId));
+            bucketWeights(group.buckets()).forEach(buckets::putIfAbsent);
+            return buckets;
+        }
+
+        private void setBuckets(int groupId, Map<TrafficTreatment, Integer> buckets) {
+            final Map<TrafficTreatment, Integer> previous = buckets.isEmpty()
+                    ? groups.remove(groupId) : groups.put(groupId, ImmutableMap.copyOf(buckets));
+            members += size(buckets) - (previous == null ? 0 : size(previous));
+        }
+    }
+
+    /**
+     * Usage of a table or action profile.
+     */
+    public static final class Usage {
+
+        private final long used;
+        private final long capacity;
+
+        private Usage(long used, long capacity) {
+            this.used = used;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Returns the number of entries or members in use.
+         *
+         * @return used entries
+         */
+        public long used() {
+            return used;
+        }
+
+        /**
+         * Returns the capacity, zero if unlimited.
+         *
+         * @return capacity
+         */
+        public long capacity() {
+            return capacity;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("used", used)
+                    .add("capacity", capacity)
+                    .toString();
+        }
+    }
+}
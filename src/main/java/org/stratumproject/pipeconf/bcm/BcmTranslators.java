@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.Maps;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiPipeconfId;
+
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Objective translators of a pipeconf. Translators do not hold any device
+ * state, they are created once per pipeconf and shared by all devices using
+ * it (see {@link TranslationContext}).
+ */
+final class BcmTranslators {
+
+    private static final ConcurrentMap<PiPipeconfId, BcmTranslators> TRANSLATORS = Maps.newConcurrentMap();
+
+    private final BcmPipelineCapabilities capabilities;
+    private final FilteringObjectiveTranslator filtering;
+    private final ForwardingObjectiveTranslator forwarding;
+    private final NextObjectiveTranslator next;
+
+    /**
+     * Creates new translators for the given capabilities.
+     *
+     * @param capabilities pipeline capabilities
+     */
+    BcmTranslators(BcmPipelineCapabilities capabilities) {
+        this.capabilities = checkNotNull(capabilities);
+        final BcmPipelineInterpreter interpreter = new BcmPipelineInterpreter(capabilities);
+        this.filtering = new FilteringObjectiveTranslator(capabilities, interpreter);
+        this.forwarding = new ForwardingObjectiveTranslator(capabilities, interpreter);
+        this.next = new NextObjectiveTranslator(capabilities, interpreter);
+    }
+
+    /**
+     * Returns the translators of the given pipeconf, creating them only if
+     * the pipeconf capabilities changed.
+     *
+     * @param pipeconf pipeconf
+     * @return translators
+     */
+    static BcmTranslators of(PiPipeconf pipeconf) {
+        final BcmPipelineCapabilities capabilities = BcmPipelineCapabilities.of(pipeconf);
+        final BcmTranslators cached = TRANSLATORS.get(pipeconf.id());
+        if (cached != null && cached.capabilities == capabilities) {
+            return cached;
+        }
+        final BcmTranslators translators = new BcmTranslators(capabilities);
+        TRANSLATORS.put(pipeconf.id(), translators);
+        return translators;
+    }
+
+    /**
+     * Removes the translators of the given pipeconf.
+     *
+     * @param pipeconfId pipeconf ID
+     */
+    static void invalidate(PiPipeconfId pipeconfId) {
+        TRANSLATORS.remove(pipeconfId);
+    }
+
+    /**
+     * Returns the capabilities of the pipeconf.
+     *
+     * @return capabilities
+     */
+    BcmPipelineCapabilities capabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Returns the filtering objective translator.
+     *
+     * @return translator
+     */
+    FilteringObjectiveTranslator filtering() {
+        return filtering;
+    }
+
+    /**
+     * Returns the forwarding objective translator.
+     *
+     * @return translator
+     */
+    ForwardingObjectiveTranslator forwarding() {
+        return forwarding;
+    }
+
+    /**
+     * Returns the next objective translator.
+     *
+     * @return translator
+     */
+    NextObjectiveTranslator next() {
+        return next;
+    }
+}
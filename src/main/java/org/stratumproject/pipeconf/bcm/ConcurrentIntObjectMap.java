@@ -0,0 +1,273 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Thread-safe map from primitive int keys to non-null values. Keys are never
+ * boxed: entries are stored in open-addressing tables (linear probing), split
+ * in segments each guarded by its own lock.
+ *
+ * @param <V> type of values
+ */
+final class ConcurrentIntObjectMap<V> {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    /**
+     * Creates a new map with the default number of segments.
+     */
+    ConcurrentIntObjectMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a new map with the given number of segments.
+     *
+     * @param numSegments number of segments, must be a power of 2
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentIntObjectMap(int numSegments) {
+        checkArgument(numSegments > 0 && Integer.bitCount(numSegments) == 1,
+                      "Number of segments must be a power of 2");
+        segments = (Segment<V>[]) new Segment<?>[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment<>();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+    }
+
+    /**
+     * Returns the value associated with the given key.
+     *
+     * @param key key
+     * @return value, or null if the key is not present
+     */
+    V get(int key) {
+        final int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Returns true if the given key is present.
+     *
+     * @param key key
+     * @return true if present
+     */
+    boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Associates the given value with the given key.
+     *
+     * @param key   key
+     * @param value value
+     * @return previous value, or null if the key was not present
+     */
+    V put(int key, V value) {
+        checkNotNull(value);
+        final int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Returns the value associated with the given key, computing and storing
+     * it first if the key is not present. The function is invoked while
+     * holding the segment lock, it must be fast and must not access this map.
+     *
+     * @param key      key
+     * @param function function computing the value
+     * @return current value
+     */
+    V computeIfAbsent(int key, IntFunction<V> function) {
+        final int hash = hash(key);
+        return segmentFor(hash).computeIfAbsent(key, hash, function);
+    }
+
+    /**
+     * Removes the given key.
+     *
+     * @param key key
+     * @return removed value, or null if the key was not present
+     */
+    V remove(int key) {
+        final int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    /**
+     * Returns the number of entries in this map.
+     *
+     * @return number of entries
+     */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Invokes the given action on each entry of this map. Each segment is
+     * copied before invoking the action, which is not called while holding
+     * any lock of this map.
+     *
+     * @param action action invoked with the value and the key of each entry
+     */
+    void forEach(ObjIntConsumer<V> action) {
+        for (Segment<V> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[hash >>> segmentShift & (segments.length - 1)];
+    }
+
+    private static int hash(int key) {
+        // Multiplicative hashing, nextIds are often allocated sequentially.
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Open-addressing table, guarded by its own monitor. A slot is free when
+     * its value is null.
+     */
+    private static final class Segment<V> {
+
+        private int[] keys = new int[MIN_SEGMENT_CAPACITY];
+        private Object[] values = new Object[MIN_SEGMENT_CAPACITY];
+        private int size;
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(int key, int hash) {
+            final int slot = find(key, hash);
+            return slot < 0 ? null : (V) values[slot];
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(int key, int hash, V value) {
+            final int slot = find(key, hash);
+            if (slot >= 0) {
+                final V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            insert(key, hash, value);
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V computeIfAbsent(int key, int hash, IntFunction<V> function) {
+            final int slot = find(key, hash);
+            if (slot >= 0) {
+                return (V) values[slot];
+            }
+            final V value = checkNotNull(function.apply(key));
+            insert(key, hash, value);
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        void forEach(ObjIntConsumer<V> action) {
+            final int[] keysCopy;
+            final Object[] valuesCopy;
+            synchronized (this) {
+                keysCopy = keys.clone();
+                valuesCopy = values.clone();
+            }
+            for (int i = 0; i < valuesCopy.length; i++) {
+                if (valuesCopy[i] != null) {
+                    action.accept((V) valuesCopy[i], keysCopy[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(int key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            final V removed = (V) values[slot];
+            // Backward-shift deletion, keeps probe sequences without
+            // tombstones.
+            final int mask = values.length - 1;
+            int next = (slot + 1) & mask;
+            while (values[next] != null) {
+                final int home = hash(keys[next]) & mask;
+                // Move the entry if its home slot is not between the free
+                // slot (exclusive) and its current position (inclusive).
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    slot = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[slot] = null;
+            size--;
+            return removed;
+        }
+
+        private int find(int key, int hash) {
+            final int mask = values.length - 1;
+            int slot = hash & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void insert(int key, int hash, Object value) {
+            // Keep load factor below 0.75.
+            if ((size + 1) * 4 > values.length * 3) {
+                resize(values.length * 2);
+            }
+            final int mask = values.length - 1;
+            int slot = hash & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        private void resize(int capacity) {
+            final int[] oldKeys = keys;
+            final Object[] oldValues = values;
+            keys = new int[capacity];
+            values = new Object[capacity];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldKeys[i], hash(oldKeys[i]), oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -6,12 +6,12 @@
 
 package org.stratumproject.pipeconf.bcm;
 
-import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.criteria.*;
 import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.pi.model.PiPipelineInterpreter;
 
 import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.criterion;
 
@@ -22,13 +22,13 @@ import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.criterion;
 public class FilteringObjectiveTranslator
         extends AbstractObjectiveTranslator<FilteringObjective> {
 
-    FilteringObjectiveTranslator(DeviceId deviceId,
-                                 BcmPipelineCapabilities capabilities) {
-        super(deviceId, capabilities);
+    FilteringObjectiveTranslator(BcmPipelineCapabilities capabilities,
+                                 PiPipelineInterpreter interpreter) {
+        super(capabilities, interpreter);
     }
 
     @Override
-    public ObjectiveTranslation doTranslate(FilteringObjective obj)
+    public ObjectiveTranslation doTranslate(TranslationContext ctx, FilteringObjective obj)
             throws BcmPipelinerException {
         ObjectiveTranslation.Builder resultBuilder = ObjectiveTranslation.builder();
         final EthCriterion ethDst = (EthCriterion) criterion(
@@ -40,7 +40,7 @@ public class FilteringObjectiveTranslator
                     .build();
 
             resultBuilder.addFlowRule(
-                    flowRule(obj,
+                    flowRule(ctx, obj,
                              BcmPipelineConstants.MY_STATION_TABLE,
                              selector,
                              DefaultTrafficTreatment.emptyTreatment())
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.onlab.util.AbstractAccumulator;
+import org.onlab.util.SharedExecutors;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.slf4j.Logger;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Accumulator which coalesces the flow rules of many objectives into a few
+ * FlowRuleOperations, while still reporting the outcome of each objective
+ * based on its own flow rules.
+ */
+final class FlowRuleAccumulator extends AbstractAccumulator<FlowRuleAccumulator.Request> {
+
+    private static final Logger log = getLogger(FlowRuleAccumulator.class);
+
+    private final FlowRuleService flowRuleService;
+    private final boolean batching;
+
+    /**
+     * Creates a new accumulator. A maximum number of requests lower than 2
+     * disables batching, in which case each request is applied as soon as it
+     * is submitted.
+     *
+     * @param flowRuleService flow rule service
+     * @param maxRequests     maximum number of requests in a batch
+     * @param maxBatchMillis  maximum lifetime of a batch in milliseconds
+     * @param maxIdleMillis   maximum idle time of a batch in milliseconds
+     */
+    FlowRuleAccumulator(FlowRuleService flowRuleService, int maxRequests,
+                        int maxBatchMillis, int maxIdleMillis) {
+        super(SharedExecutors.getTimer(), Math.max(maxRequests, 2),
+              Math.max(maxBatchMillis, 1), Math.max(Math.min(maxIdleMillis, maxBatchMillis), 1));
+        this.flowRuleService = checkNotNull(flowRuleService);
+        this.batching = maxRequests > 1;
+    }
+
+    /**
+     * Submits the given request, to be applied with the next batch.
+     *
+     * @param request request
+     */
+    void submit(Request request) {
+        if (batching) {
+            add(request);
+        } else {
+            apply(ImmutableList.of(request));
+        }
+    }
+
+    @Override
+    public void processItems(List<Request> requests) {
+        apply(requests);
+    }
+
+    /**
+     * Applies the given requests as a single FlowRuleOperations. A new stage
+     * is started whenever a request touches a flow rule already present in
+     * the current stage, so that requests on the same flow rule are applied
+     * in the order they were submitted.
+     *
+     * @param requests requests
+     */
+    void apply(List<Request> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        final int[] stages = new int[requests.size()];
+        final Set<FlowId> stageFlowIds = Sets.newHashSet();
+        int stage = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            final Request request = requests.get(i);
+            if (request.flowRules.stream().map(FlowRule::id).anyMatch(stageFlowIds::contains)) {
+                ops.newStage();
+                stageFlowIds.clear();
+                stage++;
+            }
+            for (FlowRule flowRule : request.flowRules) {
+                if (request.add) {
+                    ops.add(flowRule);
+                } else {
+                    ops.remove(flowRule);
+                }
+                stageFlowIds.add(flowRule.id());
+            }
+            stages[i] = stage;
+        }
+        log.debug("Applying {} objective(s) as {} stage(s)", requests.size(), stage + 1);
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                requests.forEach(r -> r.onSuccess.run());
+            }
+
+            @Override
+            public void onError(FlowRuleOperations failedOps) {
+                notifyError(requests, stages, failedOps);
+            }
+        }));
+    }
+
+    private void notifyError(List<Request> requests, int[] stages, FlowRuleOperations failedOps) {
+        final Set<FlowId> failedFlowIds = Sets.newHashSet();
+        failedOps.stages().forEach(s -> s.forEach(op -> failedFlowIds.add(op.rule().id())));
+        // Stages following a failed one are not applied by the flow rule
+        // subsystem, all requests there are considered failed as well.
+        int firstFailedStage = Integer.MAX_VALUE;
+        final List<Request> failed = Lists.newArrayList();
+        for (int i = 0; i < requests.size(); i++) {
+            if (requests.get(i).flowRules.stream().map(FlowRule::id).anyMatch(failedFlowIds::contains)) {
+                firstFailedStage = Math.min(firstFailedStage, stages[i]);
+            }
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            if (stages[i] > firstFailedStage || requests.get(i).flowRules.stream()
+                    .map(FlowRule::id).anyMatch(failedFlowIds::contains)) {
+                failed.add(requests.get(i));
+            } else {
+                requests.get(i).onSuccess.run();
+            }
+        }
+        log.warn("Unable to apply flow rules of {}/{} objective(s)", failed.size(), requests.size());
+        failed.forEach(r -> r.onFailure.run());
+    }
+
+    /**
+     * Request to add or remove the flow rules of a given objective.
+     */
+    static final class Request {
+
+        private final boolean add;
+        private final Collection<FlowRule> flowRules;
+        private final Runnable onSuccess;
+        private final Runnable onFailure;
+
+        /**
+         * Creates a new request.
+         *
+         * @param add       true to add the flow rules, false to remove them
+         * @param flowRules flow rules
+         * @param onSuccess invoked when all flow rules have been applied
+         * @param onFailure invoked when any of the flow rules has failed
+         */
+        Request(boolean add, Collection<FlowRule> flowRules,
+                Runnable onSuccess, Runnable onFailure) {
+            this.add = add;
+            this.flowRules = checkNotNull(flowRules);
+            this.onSuccess = checkNotNull(onSuccess);
+            this.onFailure = checkNotNull(onFailure);
+        }
+    }
+}
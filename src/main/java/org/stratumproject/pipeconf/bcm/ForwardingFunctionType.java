@@ -6,11 +6,12 @@
 
 package org.stratumproject.pipeconf.bcm;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import com.google.common.collect.Sets;
+import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.criteria.Criterion;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.slf4j.Logger;
@@ -18,6 +19,7 @@ import org.slf4j.Logger;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.onosproject.net.flow.criteria.Criterion.Type.*;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.stratumproject.pipeconf.bcm.BcmPipelineCommons.*;
@@ -129,7 +131,9 @@ public class ForwardingFunctionType {
             Collections.emptyList(),
             Collections.emptyList());
 
-    private static final Set<ForwardingFunctionType> ALL_TYPES = Sets.newHashSet(
+    // Candidates are evaluated in this order, classification scans this array
+    // comparing the criterion type masks first.
+    private static final ForwardingFunctionType[] ALL_TYPES = {
             L2_UNICAST,
             L2_BROADCAST,
             L2_BROADCAST_ALIAS,
@@ -140,16 +144,24 @@ public class ForwardingFunctionType {
             MPLS_SEGMENT_ROUTING,
             PSEUDO_WIRE,
             UNKNOWN
-    );
+    };
 
     private static final Logger log = getLogger(ForwardingFunctionType.class);
 
     private final Type type;
     private final Set<Criterion.Type> expectedCriterionTypes;
-    private final Map<Criterion.Type, List<Criterion>> matchCriteria;
-    private final Map<Criterion.Type, List<Criterion>> mismatchCriteria;
     private final ForwardingFunctionType originalType;
 
+    // Compiled definition: bitmask of the expected criterion types (one bit
+    // per Criterion.Type ordinal), and the criteria to match or mismatch
+    // grouped by type.
+    private final long expectedTypesMask;
+    private final Criterion.Type[] matchTypes;
+    private final long matchTypesMask;
+    private final Criterion[][] matchValues;
+    private final Criterion.Type[] mismatchTypes;
+    private final Criterion[][] mismatchValues;
+
     /**
      * Creates a new FFT.
      *
@@ -180,20 +192,27 @@ public class ForwardingFunctionType {
                            Collection<Criterion> matchCriteria,
                            Collection<Criterion> mismatchCriteria,
                            ForwardingFunctionType original) {
+        checkState(Criterion.Type.values().length <= Long.SIZE,
+                   "Too many criterion types for a long bitmask");
         this.type = type;
         this.expectedCriterionTypes = ImmutableSet.copyOf(expectedCriterionTypes);
-        this.matchCriteria = typeToCriteriaMap(matchCriteria);
-        this.mismatchCriteria = typeToCriteriaMap(mismatchCriteria);
         this.originalType = original == null ? this : original;
-    }
-
-    /**
-     * Gets all possible types.
-     *
-     * @return all possible types
-     */
-    private static Set<ForwardingFunctionType> values() {
-        return ALL_TYPES;
+        long mask = 0;
+        for (Criterion.Type t : expectedCriterionTypes) {
+            mask |= bit(t);
+        }
+        this.expectedTypesMask = mask;
+        final Map<Criterion.Type, List<Criterion>> match = typeToCriteriaMap(matchCriteria);
+        this.matchTypes = match.keySet().toArray(new Criterion.Type[0]);
+        this.matchValues = criteriaArray(matchTypes, match);
+        long matchMask = 0;
+        for (Criterion.Type t : matchTypes) {
+            matchMask |= bit(t);
+        }
+        this.matchTypesMask = matchMask;
+        final Map<Criterion.Type, List<Criterion>> mismatch = typeToCriteriaMap(mismatchCriteria);
+        this.mismatchTypes = mismatch.keySet().toArray(new Criterion.Type[0]);
+        this.mismatchValues = criteriaArray(mismatchTypes, mismatch);
     }
 
     /**
@@ -212,50 +231,62 @@ public class ForwardingFunctionType {
      * determined.
      */
     public static ForwardingFunctionType getForwardingFunctionType(ForwardingObjective fwd) {
-        final Set<Criterion> criteria = criteriaIncludingMeta(fwd);
-        final Set<Criterion.Type> criterionTypes = criteria.stream()
-                .map(Criterion::type).collect(Collectors.toSet());
-
-        final List<ForwardingFunctionType> candidates = ForwardingFunctionType.values().stream()
-                // Keep FFTs which expected criterion types are the same found
-                // in the fwd objective.
-                .filter(fft -> fft.expectedCriterionTypes.equals(criterionTypes))
-                // Keep FFTs which match criteria are found in the fwd objective.
-                .filter(fft -> matchFft(criteria, fft))
-                // Keep FFTs which mismatch criteria are NOT found in the objective.
-                .filter(fft -> mismatchFft(criteria, fft))
-                .collect(Collectors.toList());
-
-        switch (candidates.size()) {
-            case 1:
-                return candidates.get(0).originalType;
-            case 0:
-                return UNKNOWN;
-            default:
-                log.warn("Multiple FFT candidates found: {} [{}]", candidates, fwd);
+        final TrafficSelector selector = fwd.selector();
+        // FIXME: Is this really needed? Meta is such an ambiguous field...
+        final TrafficSelector meta = fwd.meta();
+        final long typesMask = typesMask(selector) | typesMask(meta);
+
+        ForwardingFunctionType candidate = null;
+        for (ForwardingFunctionType fft : ALL_TYPES) {
+            // Keep FFTs which expected criterion types are the same found in
+            // the fwd objective, which match criteria are found in the fwd
+            // objective, and which mismatch criteria are NOT found.
+            if (fft.expectedTypesMask != typesMask
+                    || !matchOrMismatch(selector, meta, fft.matchTypes, fft.matchValues, false)
+                    || !matchOrMismatch(selector, meta, fft.mismatchTypes, fft.mismatchValues, true)) {
+                continue;
+            }
+            if (candidate != null) {
+                log.warn("Multiple FFT candidates found: {} and {} [{}]", candidate, fft, fwd);
                 return UNKNOWN;
+            }
+            candidate = fft;
         }
+        return candidate == null ? UNKNOWN : candidate.originalType;
     }
 
     public static boolean matchFft(Collection<Criterion> criteria, ForwardingFunctionType fft) {
-        return matchOrMismatchFft(criteria, fft.matchCriteria, false);
-    }
-
-    private static boolean mismatchFft(Collection<Criterion> criteria, ForwardingFunctionType fft) {
-        return matchOrMismatchFft(criteria, fft.mismatchCriteria, true);
+        long typesMask = 0;
+        for (Criterion c : criteria) {
+            typesMask |= bit(c.type());
+        }
+        if ((typesMask & fft.matchTypesMask) != fft.matchTypesMask) {
+            return false;
+        }
+        for (int i = 0; i < fft.matchTypes.length; i++) {
+            final Criterion given = criterion(criteria, fft.matchTypes[i]);
+            if (!Arrays.asList(fft.matchValues[i]).contains(given)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static boolean matchOrMismatchFft(
-            Collection<Criterion> criteria,
-            Map<Criterion.Type, List<Criterion>> criteriaToMatch,
-            boolean mismatch) {
-        final Map<Criterion.Type, Criterion> givenCriteria = typeToCriterionMap(criteria);
-        for (Criterion.Type typeToMatch : criteriaToMatch.keySet()) {
-            if (!givenCriteria.containsKey(typeToMatch)) {
+    private static boolean matchOrMismatch(TrafficSelector selector, TrafficSelector meta,
+                                           Criterion.Type[] types, Criterion[][] values,
+                                           boolean mismatch) {
+        for (int i = 0; i < types.length; i++) {
+            final Criterion given = criterion(selector, meta, types[i]);
+            if (given == null) {
                 return false;
             }
-            final boolean matchFound = criteriaToMatch.get(typeToMatch).stream()
-                    .anyMatch(c -> mismatch != givenCriteria.get(c.type()).equals(c));
+            boolean matchFound = false;
+            for (Criterion c : values[i]) {
+                if (mismatch != given.equals(c)) {
+                    matchFound = true;
+                    break;
+                }
+            }
             if (!matchFound) {
                 return false;
             }
@@ -263,23 +294,53 @@ public class ForwardingFunctionType {
         return true;
     }
 
-    private static Set<Criterion> criteriaIncludingMeta(ForwardingObjective fwd) {
-        final Set<Criterion> criteria = Sets.newHashSet();
-        criteria.addAll(fwd.selector().criteria());
-        // FIXME: Is this really needed? Meta is such an ambiguous field...
-        if (fwd.meta() != null) {
-            criteria.addAll(fwd.meta().criteria());
+    private static Criterion criterion(TrafficSelector selector, TrafficSelector meta, Criterion.Type type) {
+        final Criterion criterion = selector.getCriterion(type);
+        return criterion != null || meta == null ? criterion : meta.getCriterion(type);
+    }
+
+    private static Criterion criterion(Collection<Criterion> criteria, Criterion.Type type) {
+        for (Criterion c : criteria) {
+            if (c.type() == type) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static long typesMask(TrafficSelector selector) {
+        if (selector == null) {
+            return 0;
+        }
+        long mask = 0;
+        for (Criterion c : selector.criteria()) {
+            mask |= bit(c.type());
+        }
+        return mask;
+    }
+
+    private static long bit(Criterion.Type type) {
+        return 1L << type.ordinal();
+    }
+
+    private static Criterion[][] criteriaArray(Criterion.Type[] types,
+                                               Map<Criterion.Type, List<Criterion>> criteria) {
+        final Criterion[][] array = new Criterion[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            array[i] = criteria.get(types[i]).toArray(new Criterion[0]);
         }
-        return criteria;
+        return array;
     }
 
     private static Map<Criterion.Type, List<Criterion>> typeToCriteriaMap(Collection<Criterion> criteria) {
         return criteria.stream().collect(Collectors.groupingBy(Criterion::type));
     }
 
-    private static Map<Criterion.Type, Criterion> typeToCriterionMap(Collection<Criterion> criteria) {
-        final ImmutableMap.Builder<Criterion.Type, Criterion> mapBuilder = ImmutableMap.builder();
-        criteria.forEach(c -> mapBuilder.put(c.type(), c));
-        return mapBuilder.build();
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("type", type)
+                .add("expectedCriterionTypes", expectedCriterionTypes)
+                .toString();
     }
 }
@@ -10,12 +10,12 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import org.onosproject.core.ApplicationId;
-import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.flow.*;
 import org.onosproject.net.flow.criteria.*;
 import org.onosproject.net.flowobjective.*;
 import org.onosproject.net.group.*;
+import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiActionParam;
 import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
@@ -48,36 +48,63 @@ public class ForwardingObjectiveTranslator
             Criterion.Type.VLAN_PCP,
             Criterion.Type.PROTOCOL_INDEPENDENT);
     private static final int CLONE_TO_CPU_ID = 511;
+    private static final PiCriterion DEFAULT_VRF_CRITERION = PiCriterion.builder()
+            .matchExact(LOCAL_METADATA_VRF_ID, DEFAULT_VRF_ID)
+            .build();
 
-    private BcmObjectiveStore bcmObjectiveStore;
+    ForwardingObjectiveTranslator(BcmPipelineCapabilities capabilities,
+                                  PiPipelineInterpreter interpreter) {
+        super(capabilities, interpreter);
+    }
 
-    ForwardingObjectiveTranslator(DeviceId deviceId,
-                                  BcmPipelineCapabilities capabilities,
-                                  BcmObjectiveStore bcmObjectiveStore) {
-        super(deviceId, capabilities);
-        this.bcmObjectiveStore = bcmObjectiveStore;
+    /**
+     * Returns true if the given forwarding objective can be translated only
+     * once its next objective is known, i.e. when the content of the next
+     * objective is merged in the resulting flow rules.
+     *
+     * @param obj forwarding objective
+     * @return true if the next objective is required
+     */
+    static boolean requiresNextObjective(ForwardingObjective obj) {
+        return obj.nextId() != null
+                && obj.flag() == ForwardingObjective.Flag.SPECIFIC
+                && obj.op() != Objective.Operation.REMOVE
+                && ForwardingFunctionType.getForwardingFunctionType(obj).type()
+                        == ForwardingFunctionType.Type.L2_UNICAST;
     }
 
     @Override
-    public ObjectiveTranslation doTranslate(ForwardingObjective obj) throws BcmPipelinerException {
+    public ObjectiveTranslation doTranslate(TranslationContext ctx, ForwardingObjective obj) throws BcmPipelinerException {
         final ObjectiveTranslation.Builder resultBuilder =
                 ObjectiveTranslation.builder();
+        if (obj.op() == Objective.Operation.REMOVE) {
+            // Remove exactly what was installed, the next objective might
+            // not be available anymore.
+            final List<FlowRule> installed = ctx.objectiveStore().removeForwardingFlowRules(obj);
+            if (installed != null) {
+                for (FlowRule flowRule : installed) {
+                    resultBuilder.addFlowRule(flowRule);
+                }
+                return resultBuilder.build();
+            }
+        }
         switch (obj.flag()) {
             case SPECIFIC:
-                processSpecificFwd(obj, resultBuilder);
+                processSpecificFwd(ctx, obj, resultBuilder);
                 break;
             case VERSATILE:
-                processVersatileFwd(obj, resultBuilder);
+                processVersatileFwd(ctx, obj, resultBuilder);
                 break;
             case EGRESS:
             default:
                 log.warn("Unsupported ForwardingObjective type '{}'", obj.flag());
                 return ObjectiveTranslation.ofError(ObjectiveError.UNSUPPORTED);
         }
+        // Flow rules are memoized by the pipeliner once installed.
         return resultBuilder.build();
     }
 
-    private void processSpecificFwd(ForwardingObjective obj,
+    private void processSpecificFwd(TranslationContext ctx, ForwardingObjective obj,
                                     ObjectiveTranslation.Builder resultBuilder) throws BcmPipelinerException {
 
         final Set<Criterion> criteriaWithMeta = Sets.newHashSet(obj.selector().criteria());
@@ -95,13 +122,13 @@ public class ForwardingObjectiveTranslator
                 throw new BcmPipelinerException(
                         "unable to detect forwarding function type");
             case L2_UNICAST:
-                bridgingRule(obj, criteriaWithMeta, resultBuilder);
+                bridgingRule(ctx, obj, criteriaWithMeta, resultBuilder);
                 break;
             case IPV4_ROUTING:
-                ipv4RoutingRule(obj, criteriaWithMeta, resultBuilder);
+                ipv4RoutingRule(ctx, obj, criteriaWithMeta, resultBuilder);
                 break;
             case MPLS_SEGMENT_ROUTING:
-                mplsRule(obj, criteriaWithMeta, resultBuilder);
+                mplsRule(ctx, obj, criteriaWithMeta, resultBuilder);
                 break;
             case L2_BROADCAST:
             case IPV4_ROUTING_MULTICAST:
@@ -115,12 +142,17 @@ public class ForwardingObjectiveTranslator
         }
     }
 
-    private void bridgingRule(ForwardingObjective obj, Set<Criterion> criteriaWithMeta,
+    private void bridgingRule(TranslationContext ctx, ForwardingObjective obj,
+                              Set<Criterion> criteriaWithMeta,
                               ObjectiveTranslation.Builder resultBuilder)
             throws BcmPipelinerException {
 
-        NextObjective nextObj = bcmObjectiveStore.popStoredNextObjective(obj.nextId());
-        checkNotNull(nextObj);
+        NextObjective nextObj = ctx.objectiveStore().getNextObjective(obj.nextId());
+        if (nextObj == null) {
+            throw new BcmPipelinerException(
+                    format("Next objective %d not found for l2 unicast objective", obj.nextId()),
+                    ObjectiveError.GROUPMISSING);
+        }
 
         TrafficTreatment treatment = nextObj.nextTreatments().stream()
                 .filter(t -> t.type() == NextTreatment.Type.TREATMENT)
@@ -151,10 +183,11 @@ public class ForwardingObjectiveTranslator
                 .setOutput(outputPort)
                 .build();
 
-        resultBuilder.addFlowRule(flowRule(obj, L2_UNICAST_TABLE, selector, treatment));
+        resultBuilder.addFlowRule(flowRule(ctx, obj, L2_UNICAST_TABLE, selector, treatment));
     }
 
-    private void ipv4RoutingRule(ForwardingObjective obj, Set<Criterion> criteriaWithMeta,
+    private void ipv4RoutingRule(TranslationContext ctx, ForwardingObjective obj,
+                                 Set<Criterion> criteriaWithMeta,
                                  ObjectiveTranslation.Builder resultBuilder)
             throws BcmPipelinerException {
 
@@ -167,13 +200,14 @@ public class ForwardingObjectiveTranslator
         checkNotNull(ipDstCriterion);
         TrafficSelector selector = DefaultTrafficSelector.builder()
             .matchIPDst(ipDstCriterion.ip())
-            .matchPi(PiCriterion.builder().matchExact(LOCAL_METADATA_VRF_ID, DEFAULT_VRF_ID).build())
+            .matchPi(DEFAULT_VRF_CRITERION)
             .build();
 
-        TrafficTreatment treatment = actionProfileGroupTreatmentFromNextId(obj.nextId());
+        TrafficTreatment treatment = actionProfileGroupTreatmentFromNextId(ctx, obj.nextId());
 
         // l3_fwd_table
         resultBuilder.addFlowRule(flowRule(
+                ctx,
                 obj,
                 L3_FWD_TABLE,
                 selector,
@@ -181,7 +215,8 @@ public class ForwardingObjectiveTranslator
         ));
     }
 
-    private void mplsRule(ForwardingObjective obj, Set<Criterion> criteriaWithMeta,
+    private void mplsRule(TranslationContext ctx, ForwardingObjective obj,
+                          Set<Criterion> criteriaWithMeta,
                           ObjectiveTranslation.Builder resultBuilder)
             throws BcmPipelinerException {
 
@@ -193,11 +228,12 @@ public class ForwardingObjectiveTranslator
             .orElse(null);
         checkNotNull(mplsCriterion);
 
-        TrafficTreatment treatment = actionProfileGroupTreatmentFromNextId(obj.nextId());
+        TrafficTreatment treatment = actionProfileGroupTreatmentFromNextId(ctx, obj.nextId());
         TrafficSelector selector = DefaultTrafficSelector.builder()
                 .matchMplsLabel(mplsCriterion.label())
                 .build();
         resultBuilder.addFlowRule(flowRule(
+                ctx,
                 obj,
                 L3_MPLS_TABLE,
                 selector,
@@ -205,13 +241,16 @@ public class ForwardingObjectiveTranslator
         ));
     }
 
-    private TrafficTreatment actionProfileGroupTreatmentFromNextId(int nextId) {
-        return DefaultTrafficTreatment.builder()
-                .piTableAction(PiActionProfileGroupId.of(nextId))
-                .build();
+    private TrafficTreatment actionProfileGroupTreatmentFromNextId(TranslationContext ctx, int nextId) {
+        // Next objectives with the same buckets share the same group, routes
+        // sharing the same group share the same treatment.
+        return bulkLookup(PiActionProfileGroupId.of(ctx.nextGroups().groupId(nextId)), groupId ->
+                DefaultTrafficTreatment.builder()
+                        .piTableAction(groupId)
+                        .build());
     }
 
-    private void processVersatileFwd(ForwardingObjective obj,
+    private void processVersatileFwd(TranslationContext ctx, ForwardingObjective obj,
                                      ObjectiveTranslation.Builder resultBuilder)
             throws BcmPipelinerException {
         final Set<Criterion.Type> unsupportedCriteria = obj.selector().criteria()
@@ -231,18 +270,19 @@ public class ForwardingObjectiveTranslator
         if (outPort != null
                 && outPort.equals(PortNumber.CONTROLLER)
                 && obj.treatment().allInstructions().size() == 1) {
+            final PiActionParam queueId = ctx.puntQueueMapper().queueId(obj.selector());
             if (obj.treatment().clearedDeferred()) {
                 // Send to CPU
                 puntAction = PiAction.builder()
                         .withId(PUNT_SET_QUEUE_AND_SEND_TO_CPU)
-                        .withParameter(DEFAULT_QUEUE_ID)
+                        .withParameter(queueId)
                         .build();
             } else {
                 // Action is SET_CLONE_SESSION_ID
                 if (obj.op() == Objective.Operation.ADD) {
                     // Action is ADD, create clone group
                     final DefaultGroupDescription cloneGroup =
-                            createCloneGroup(obj.appId(),
+                            createCloneGroup(ctx, obj.appId(),
                                     CLONE_TO_CPU_ID,
                                     outPort);
                     resultBuilder.addGroup(cloneGroup);
@@ -251,7 +291,7 @@ public class ForwardingObjectiveTranslator
                 // Clone to CPU
                 puntAction = PiAction.builder()
                         .withId(PUNT_SET_QUEUE_AND_CLONE_TO_CPU)
-                        .withParameter(DEFAULT_QUEUE_ID)
+                        .withParameter(queueId)
                         .build();
             }
         } else {
@@ -266,10 +306,11 @@ public class ForwardingObjectiveTranslator
             .piTableAction(puntAction)
             .build();
 
-        resultBuilder.addFlowRule(flowRule(obj, PUNT_TABLE, obj.selector(), treatment));
+        resultBuilder.addFlowRule(flowRule(ctx, obj, PUNT_TABLE, obj.selector(), treatment));
     }
 
     private DefaultGroupDescription createCloneGroup(
+            TranslationContext ctx,
             ApplicationId appId,
             int cloneSessionId,
             PortNumber outPort) {
@@ -282,7 +323,7 @@ public class ForwardingObjectiveTranslator
                         .build()));
 
         final DefaultGroupDescription cloneGroup = new DefaultGroupDescription(
-                deviceId, GroupDescription.Type.CLONE,
+                ctx.deviceId(), GroupDescription.Type.CLONE,
                 new GroupBuckets(bucketList),
                 groupKey, cloneSessionId, appId);
         return cloneGroup;
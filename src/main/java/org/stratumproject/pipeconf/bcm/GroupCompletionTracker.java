@@ -0,0 +1,420 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.bucketWeights;
+
+/**
+ * Applies groups on behalf of objectives and signals their completion once
+ * the group subsystem confirms the group has been written on the device.
+ * Each device has a single tracker registered as listener of the group
+ * service, see {@link #register(GroupCompletionTracker)}.
+ */
+final class GroupCompletionTracker implements GroupListener {
+
+    private static final Logger log = getLogger(GroupCompletionTracker.class);
+
+    private enum Operation {
+        ADD, UPDATE, REMOVE
+    }
+
+    private static final ConcurrentMap<DeviceId, GroupCompletionTracker> TRACKERS = Maps.newConcurrentMap();
+
+    private final DeviceId deviceId;
+    private final GroupService groupService;
+    private final long timeoutMillis;
+    private final ConcurrentMap<GroupKey, List<Waiter>> waiters = Maps.newConcurrentMap();
+
+    /**
+     * Creates a new tracker. The tracker must be registered before use.
+     *
+     * @param deviceId      device ID
+     * @param groupService  group service
+     * @param timeoutMillis time after which a pending group operation fails
+     */
+    GroupCompletionTracker(DeviceId deviceId, GroupService groupService, long timeoutMillis) {
+        this.deviceId = checkNotNull(deviceId);
+        this.groupService = checkNotNull(groupService);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Registers the given tracker as listener of the group service, replacing
+     * the previous tracker of its device, if any. Operations still pending on
+     * the previous tracker are taken over by the new one.
+     *
+     * @param tracker group completion tracker
+     */
+    static void register(GroupCompletionTracker tracker) {
+        tracker.groupService.addListener(tracker);
+        final GroupCompletionTracker previous = TRACKERS.put(tracker.deviceId, tracker);
+        if (previous != null && previous != tracker) {
+            tracker.takeOver(previous);
+        }
+    }
+
+    /**
+     * Removes the tracker of the given device, failing its pending
+     * operations.
+     *
+     * @param deviceId device ID
+     */
+    static void remove(DeviceId deviceId) {
+        final GroupCompletionTracker tracker = TRACKERS.remove(deviceId);
+        if (tracker != null) {
+            tracker.groupService.removeListener(tracker);
+            tracker.failPending();
+        }
+    }
+
+    /**
+     * Removes the trackers of all devices, failing their pending operations.
+     */
+    static void clear() {
+        TRACKERS.keySet().forEach(GroupCompletionTracker::remove);
+    }
+
+    /**
+     * Adds the given group, the completion part is done once the group is
+     * added or if it already exists.
+     *
+     * @param group      group description
+     * @param completion completion of the objective
+     * @param onSuccess  invoked once the group is added, before the
+     *                   completion part is done, or null
+     * @param onFailure  invoked if the group fails to be added
+     */
+    void addGroup(GroupDescription group, ObjectiveCompletion completion, Runnable onSuccess, Runnable onFailure) {
+        final Group existing = groupService.getGroup(deviceId, group.appCookie());
+        if (existing != null && existing.state() == Group.GroupState.ADDED) {
+            // No event is generated for a group already in the store.
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            completion.partDone();
+        } else {
+            await(group.appCookie(), Operation.ADD, completion, ObjectiveError.GROUPINSTALLATIONFAILED,
+                  onSuccess, onFailure);
+        }
+        groupService.addGroup(group);
+    }
+
+    /**
+     * Removes the given group, the completion part is done once the group is
+     * removed or if it does not exist.
+     *
+     * @param group      group description
+     * @param appId      application ID
+     * @param completion completion of the objective
+     */
+    void removeGroup(GroupDescription group, ApplicationId appId, ObjectiveCompletion completion) {
+        if (groupService.getGroup(deviceId, group.appCookie()) == null) {
+            completion.partDone();
+            return;
+        }
+        await(group.appCookie(), Operation.REMOVE, completion, ObjectiveError.GROUPREMOVALFAILED, null, null);
+        groupService.removeGroup(deviceId, group.appCookie(), appId);
+    }
+
+    /**
+     * Adds the buckets of the given group to the existing one, the completion
+     * part is done once the group is updated or if all buckets are already
+     * present.
+     *
+     * @param group      group description
+     * @param completion completion of the objective
+     * @param onFailure  invoked if the group fails to be updated
+     */
+    void addBuckets(GroupDescription group, ObjectiveCompletion completion, Runnable onFailure) {
+        final Group existing = groupService.getGroup(deviceId, group.appCookie());
+        if (existing == null) {
+            completion.partFailed(ObjectiveError.GROUPMISSING);
+            return;
+        }
+        if (existing.buckets().buckets().containsAll(group.buckets().buckets())) {
+            completion.partDone();
+            return;
+        }
+        await(group.appCookie(), Operation.UPDATE, completion, ObjectiveError.GROUPINSTALLATIONFAILED,
+              null, onFailure);
+        groupService.addBucketsToGroup(deviceId, group.appCookie(), group.buckets(),
+                                       group.appCookie(), group.appId());
+    }
+
+    /**
+     * Removes the buckets of the given group from the existing one, the
+     * completion part is done once the group is updated or if none of the
+     * buckets is present.
+     *
+     * @param group      group description
+     * @param completion completion of the objective
+     * @param onFailure  invoked if the group fails to be updated
+     */
+    void removeBuckets(GroupDescription group, ObjectiveCompletion completion, Runnable onFailure) {
+        final Group existing = groupService.getGroup(deviceId, group.appCookie());
+        if (existing == null || !containsAny(existing.buckets(), group.buckets())) {
+            completion.partDone();
+            return;
+        }
+        await(group.appCookie(), Operation.UPDATE, completion, ObjectiveError.GROUPINSTALLATIONFAILED,
+              null, onFailure);
+        groupService.removeBucketsFromGroup(deviceId, group.appCookie(), group.buckets(),
+                                            group.appCookie(), group.appId());
+    }
+
+    /**
+     * Replaces the buckets of the existing group with the ones of the given
+     * group, with a single in-place update of the group. The completion part
+     * is done once the group is updated or if the buckets are unchanged.
+     *
+     * @param group      group description
+     * @param completion completion of the objective
+     * @param onFailure  invoked if the group fails to be updated
+     */
+    void setBuckets(GroupDescription group, ObjectiveCompletion completion, Runnable onFailure) {
+        final Group existing = groupService.getGroup(deviceId, group.appCookie());
+        if (existing == null) {
+            completion.partFailed(ObjectiveError.GROUPMISSING);
+            return;
+        }
+        // Bucket equality ignores weights.
+        final Map<TrafficTreatment, Integer> current = bucketWeights(existing.buckets());
+        final Map<TrafficTreatment, Integer> updated = bucketWeights(group.buckets());
+        if (current.equals(updated)) {
+            completion.partDone();
+            return;
+        }
+        log.debug("Updating group {} on {}: {} bucket(s) added or reweighted, {} bucket(s) removed",
+                  group.appCookie(), deviceId,
+                  Sets.difference(updated.entrySet(), current.entrySet()).size(),
+                  Sets.difference(current.keySet(), updated.keySet()).size());
+        await(group.appCookie(), Operation.UPDATE, completion, ObjectiveError.GROUPINSTALLATIONFAILED,
+              null, onFailure);
+        groupService.setBucketsForGroup(deviceId, group.appCookie(), group.buckets(),
+                                        group.appCookie(), group.appId());
+    }
+
+    /**
+     * Returns the number of group operations waiting for confirmation.
+     *
+     * @return number of pending group operations
+     */
+    int pendingCount() {
+        return waiters.values().stream().mapToInt(List::size).sum();
+    }
+
+    @Override
+    public boolean isRelevant(GroupEvent event) {
+        return !waiters.isEmpty() && event.subject().deviceId().equals(deviceId);
+    }
+
+    @Override
+    public void event(GroupEvent event) {
+        final GroupKey key = event.subject().appCookie();
+        switch (event.type()) {
+            case GROUP_ADDED:
+                complete(key, Operation.ADD, true);
+                break;
+            case GROUP_ADD_FAILED:
+                complete(key, Operation.ADD, false);
+                break;
+            case GROUP_UPDATED:
+                complete(key, Operation.UPDATE, true);
+                break;
+            case GROUP_UPDATE_FAILED:
+                complete(key, Operation.UPDATE, false);
+                break;
+            case GROUP_REMOVED:
+                complete(key, Operation.REMOVE, true);
+                break;
+            case GROUP_REMOVE_FAILED:
+                complete(key, Operation.REMOVE, false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void await(GroupKey key, Operation op, ObjectiveCompletion completion, ObjectiveError error,
+                       Runnable onSuccess, Runnable onFailure) {
+        final GroupCompletionTracker current = TRACKERS.getOrDefault(deviceId, this);
+        if (current != this) {
+            // Replaced after a re-init of the pipeliner.
+            current.await(key, op, completion, error, onSuccess, onFailure);
+            return;
+        }
+        final Waiter waiter = new Waiter(key, op, completion, error, onSuccess, onFailure);
+        // Registered before applying the group, so the event cannot be missed.
+        waiters.compute(key, (k, list) -> {
+            final List<Waiter> newList = list == null ? Lists.newArrayListWithCapacity(1) : list;
+            newList.add(waiter);
+            return newList;
+        });
+        waiter.timeout = SharedScheduledExecutors.newTimeout(
+                () -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(GroupKey key, Operation op, boolean success) {
+        final List<Waiter> completed = Lists.newArrayList();
+        waiters.computeIfPresent(key, (k, list) -> {
+            list.removeIf(w -> {
+                if (w.op == op) {
+                    completed.add(w);
+                    return true;
+                }
+                return false;
+            });
+            return list.isEmpty() ? null : list;
+        });
+        completed.forEach(w -> {
+            if (w.timeout != null) {
+                w.timeout.cancel(false);
+            }
+            if (!w.claim()) {
+                return;
+            }
+            if (success) {
+                if (w.onSuccess != null) {
+                    w.onSuccess.run();
+                }
+                w.completion.partDone();
+            } else {
+                // Not on timeouts, the operation might still be applied.
+                if (w.onFailure != null) {
+                    w.onFailure.run();
+                }
+                w.completion.partFailed(w.error);
+            }
+        });
+    }
+
+    private void expire(Waiter waiter) {
+        final boolean[] removed = {false};
+        waiters.computeIfPresent(waiter.key, (k, list) -> {
+            removed[0] = list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        });
+        if (removed[0] && waiter.claim()) {
+            log.warn("{} of group {} on {} not confirmed within {} ms, failing {}",
+                     waiter.op, waiter.key, deviceId, timeoutMillis, waiter.completion.objective());
+            waiter.completion.partFailed(ObjectiveError.INSTALLATIONTIMEOUT);
+        }
+    }
+
+    private void takeOver(GroupCompletionTracker previous) {
+        // Both trackers receive the events until the previous one is removed,
+        // waiters are present in both meanwhile and completed only once.
+        previous.waiters.keySet().forEach(key -> {
+            final List<Waiter> moved = Lists.newArrayList();
+            previous.waiters.computeIfPresent(key, (k, list) -> {
+                moved.addAll(list);
+                return list;
+            });
+            moved.forEach(waiter -> {
+                final ScheduledFuture<?> previousTimeout = waiter.timeout;
+                waiters.compute(key, (k, l) -> {
+                    final List<Waiter> newList = l == null ? Lists.newArrayListWithCapacity(1) : l;
+                    newList.add(waiter);
+                    return newList;
+                });
+                waiter.timeout = SharedScheduledExecutors.newTimeout(
+                        () -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+                if (previousTimeout != null) {
+                    previousTimeout.cancel(false);
+                }
+            });
+        });
+        previous.groupService.removeListener(previous);
+        previous.waiters.clear();
+        if (!waiters.isEmpty()) {
+            log.info("Took over {} pending group operation(s) on {}", pendingCount(), deviceId);
+        }
+    }
+
+    private void failPending() {
+        waiters.keySet().forEach(key -> {
+            final List<Waiter> removed = waiters.remove(key);
+            if (removed == null) {
+                return;
+            }
+            removed.forEach(w -> {
+                if (w.timeout != null) {
+                    w.timeout.cancel(false);
+                }
+                if (w.claim()) {
+                    w.completion.partFailed(w.error);
+                }
+            });
+        });
+    }
+
+    private static boolean containsAny(GroupBuckets buckets, GroupBuckets others) {
+        for (GroupBucket bucket : others.buckets()) {
+            if (buckets.buckets().contains(bucket)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Objective waiting for a group operation to be confirmed.
+     */
+    private static final class Waiter {
+
+        private final GroupKey key;
+        private final Operation op;
+        private final ObjectiveCompletion completion;
+        private final ObjectiveError error;
+        private final Runnable onSuccess;
+        private final Runnable onFailure;
+        private volatile ScheduledFuture<?> timeout;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Waiter(GroupKey key, Operation op, ObjectiveCompletion completion, ObjectiveError error,
+                       Runnable onSuccess, Runnable onFailure) {
+            this.key = key;
+            this.op = op;
+            this.completion = completion;
+            this.error = error;
+            this.onSuccess = onSuccess;
+            this.onFailure = onFailure;
+        }
+
+        // A waiter is completed by a single tracker.
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+}
@@ -6,8 +6,8 @@
 
 package org.stratumproject.pipeconf.bcm;
 
+import com.google.common.collect.Lists;
 import org.onlab.packet.VlanId;
-import org.onosproject.net.DeviceId;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
@@ -20,13 +20,17 @@ import org.onosproject.net.flowobjective.NextTreatment;
 import org.onosproject.net.flowobjective.ObjectiveError;
 import org.onosproject.net.group.*;
 import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiGroupKey;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
+import static java.lang.String.format;
 import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.*;
 import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.*;
 
@@ -36,25 +40,21 @@ import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.*;
  */
 public class NextObjectiveTranslator extends AbstractObjectiveTranslator<NextObjective> {
 
-    private BcmObjectiveStore bcmObjectiveStore;
-
-    NextObjectiveTranslator(DeviceId deviceId,
-                            BcmPipelineCapabilities capabilities,
-                            BcmObjectiveStore bcmObjectiveStore) {
-        super(deviceId, capabilities);
-        this.bcmObjectiveStore = bcmObjectiveStore;
+    NextObjectiveTranslator(BcmPipelineCapabilities capabilities,
+                            PiPipelineInterpreter interpreter) {
+        super(capabilities, interpreter);
     }
 
     @Override
-    public ObjectiveTranslation doTranslate(NextObjective obj) throws BcmPipelinerException {
+    public ObjectiveTranslation doTranslate(TranslationContext ctx, NextObjective obj) throws BcmPipelinerException {
         final ObjectiveTranslation.Builder resultBuilder =
                 ObjectiveTranslation.builder();
         switch (obj.type()) {
             case SIMPLE:
-                simpleNext(obj, resultBuilder);
+                simpleNext(ctx, obj, resultBuilder);
                 break;
             case HASHED:
-                hashedNext(obj, resultBuilder);
+                hashedNext(ctx, obj, resultBuilder);
                 break;
             case BROADCAST:
                 log.warn("Unsupported NextObjective type '{}', ignore it", obj);
@@ -67,29 +67,29 @@ public class NextObjectiveTranslator extends AbstractObjectiveTranslator<NextObj
     }
 
 
-    private void simpleNext(NextObjective obj,
+    private void simpleNext(TranslationContext ctx, NextObjective obj,
                             ObjectiveTranslation.Builder resultBuilder) throws BcmPipelinerException {
         // Next objective for will be hashed next is it's L3
         if (isL3NextObj(obj)) {
-            hashedNext(obj, resultBuilder);
+            hashedNext(ctx, obj, resultBuilder);
         }
 
         // Otherwise we will hold it now and combine it to forwarding objective later.
     }
 
-    private void hashedNext(NextObjective obj,
+    private void hashedNext(TranslationContext ctx, NextObjective obj,
                             ObjectiveTranslation.Builder resultBuilder) throws BcmPipelinerException {
         if (isMplsOp(obj, L2ModificationInstruction.L2SubType.MPLS_PUSH)) {
             // Push MPLS
-            resultBuilder.addGroup(buildL3HashedGroup(obj, L3_FWD_TABLE, L3_FWD_WCMP_ACTION_PROFILE));
+            resultBuilder.addGroup(buildL3HashedGroup(ctx, obj, L3_FWD_TABLE, L3_FWD_WCMP_ACTION_PROFILE));
         } else if(isMplsOp(obj, L2ModificationInstruction.L2SubType.MPLS_POP) ||
                   isMplsOp(obj, L2ModificationInstruction.L2SubType.MPLS_LABEL) ||
                   withMplsSegmentRoutingMeta(obj.meta())) {
             // Swap or pop MPLS
-            resultBuilder.addGroup(buildL3HashedGroup(obj, L3_MPLS_TABLE, L3_FWD_MPLS_ECMP_ACTION_PROFILE));
+            resultBuilder.addGroup(buildL3HashedGroup(ctx, obj, L3_MPLS_TABLE, L3_FWD_MPLS_ECMP_ACTION_PROFILE));
         } else {
             // Normal L3 next
-            resultBuilder.addGroup(buildL3HashedGroup(obj, L3_FWD_TABLE, L3_FWD_WCMP_ACTION_PROFILE));
+            resultBuilder.addGroup(buildL3HashedGroup(ctx, obj, L3_FWD_TABLE, L3_FWD_WCMP_ACTION_PROFILE));
         }
     }
 
@@ -97,14 +97,18 @@ public class NextObjectiveTranslator extends AbstractObjectiveTranslator<NextObj
         return ForwardingFunctionType.matchFft(meta.criteria(), ForwardingFunctionType.MPLS_SEGMENT_ROUTING);
     }
 
-    private DefaultGroupDescription buildL3HashedGroup(NextObjective obj,
+    private DefaultGroupDescription buildL3HashedGroup(TranslationContext ctx,
+                                                       NextObjective obj,
                                                        PiTableId tableId,
-                                                       PiActionProfileId actionProfileId) {
+                                                       PiActionProfileId actionProfileId)
+            throws BcmPipelinerException {
         final VlanIdCriterion vlanIdCriterion = obj.meta() == null ? null
                 : (VlanIdCriterion) criterion(obj.meta().criteria(), Criterion.Type.VLAN_VID);
         final VlanId vlanId = vlanIdCriterion == null ? null : vlanIdCriterion.vlanId();
 
-        final List<TrafficTreatment> piTreatments = obj.nextTreatments().stream()
+        // Next treatments carry no weight, the same treatment given more than
+        // once is one bucket weighted by the number of occurrences.
+        final Map<TrafficTreatment, Integer> piTreatments = obj.nextTreatments().stream()
                 .filter(nt -> nt.type() == NextTreatment.Type.TREATMENT)
                 .map(nt -> (DefaultNextTreatment)nt)
                 .map(DefaultNextTreatment::treatment)
@@ -123,16 +127,27 @@ public class NextObjectiveTranslator extends AbstractObjectiveTranslator<NextObj
                     }
                 })
                 .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-
-        final List<GroupBucket> bucketList = piTreatments.stream()
-                .map(DefaultGroupBucket::createSelectGroupBucket)
-                .collect(Collectors.toList());
+                .collect(Collectors.toMap(t -> t, t -> 1, Integer::sum, LinkedHashMap::new));
+
+        final int maxGroupSize = wcmpMaxGroupSize(ctx, actionProfileId);
+        if (maxGroupSize > 0 && piTreatments.size() > maxGroupSize) {
+            throw new BcmPipelinerException(format(
+                    "Next %d has %d buckets, more than the maximum group size %d of %s",
+                    obj.id(), piTreatments.size(), maxGroupSize, actionProfileId),
+                    ObjectiveError.INSTALLATIONTHRESHOLDEXCEEDED);
+        }
+        final int[] weights = WcmpWeights.normalize(
+                piTreatments.values().stream().mapToInt(Integer::intValue).toArray(), maxGroupSize);
+        final List<GroupBucket> bucketList = Lists.newArrayListWithCapacity(weights.length);
+        int i = 0;
+        for (TrafficTreatment treatment : piTreatments.keySet()) {
+            bucketList.add(DefaultGroupBucket.createSelectGroupBucket(treatment, (short) weights[i++]));
+        }
 
         final int groupId = obj.id();
         final PiGroupKey groupKey = new PiGroupKey(tableId, actionProfileId, groupId);
         return new DefaultGroupDescription(
-                deviceId,
+                ctx.deviceId(),
                 GroupDescription.Type.SELECT,
                 new GroupBuckets(bucketList),
                 groupKey,
@@ -141,5 +156,18 @@ public class NextObjectiveTranslator extends AbstractObjectiveTranslator<NextObj
         );
     }
 
+    private int wcmpMaxGroupSize(TranslationContext ctx, PiActionProfileId actionProfileId) {
+        // The smallest of the configured and pipeline limits, bucket weights
+        // are shorts.
+        int maxGroupSize = Short.MAX_VALUE;
+        final int pipelineMax = capabilities.actionProfileMaxGroupSize(actionProfileId).orElse(0);
+        if (pipelineMax > 0) {
+            maxGroupSize = Math.min(maxGroupSize, pipelineMax);
+        }
+        if (ctx.wcmpMaxGroupSize() > 0) {
+            maxGroupSize = Math.min(maxGroupSize, ctx.wcmpMaxGroupSize());
+        }
+        return maxGroupSize;
+    }
 
 }
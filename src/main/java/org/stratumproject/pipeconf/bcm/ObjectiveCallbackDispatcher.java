@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveError;
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Dispatcher of objective callbacks. Callbacks are queued and invoked in
+ * batches by a single task, instead of handing each one to the executor.
+ */
+final class ObjectiveCallbackDispatcher {
+
+    private static final Logger log = getLogger(ObjectiveCallbackDispatcher.class);
+
+    // Maximum number of callbacks invoked by a task before yielding the
+    // executor thread to other tasks.
+    private static final int MAX_CALLBACKS_PER_TASK = 1000;
+
+    private final Executor executor;
+    private final Queue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param executor executor used to invoke callbacks
+     */
+    ObjectiveCallbackDispatcher(Executor executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Notifies the success of the given objective.
+     *
+     * @param objective objective
+     */
+    void success(Objective objective) {
+        objective.context().ifPresent(ctx -> dispatch(() -> ctx.onSuccess(objective)));
+    }
+
+    /**
+     * Notifies the failure of the given objective.
+     *
+     * @param objective objective
+     * @param error     error
+     */
+    void fail(Objective objective, ObjectiveError error) {
+        objective.context().ifPresent(ctx -> dispatch(() -> ctx.onError(objective, error)));
+    }
+
+    private void dispatch(Runnable callback) {
+        callbacks.add(callback);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!callbacks.isEmpty() && scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                log.warn("Unable to dispatch objective callbacks: {}", e.getMessage());
+                scheduled.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable callback;
+            int count = 0;
+            while (count++ < MAX_CALLBACKS_PER_TASK && (callback = callbacks.poll()) != null) {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    log.error("Exception while invoking objective callback", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Callbacks queued while draining, or left behind.
+            schedule();
+        }
+    }
+}
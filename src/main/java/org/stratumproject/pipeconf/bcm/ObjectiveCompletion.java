@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.flowobjective.ObjectiveError;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tracks the completion of an objective applied as several parts (flow rules
+ * and groups). The objective succeeds once all parts are done, or fails as
+ * soon as one part fails. The objective is notified only once.
+ */
+final class ObjectiveCompletion {
+
+    private final Objective objective;
+    private final ObjectiveCallbackDispatcher dispatcher;
+    private final AtomicInteger pendingParts;
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /**
+     * Creates a new completion.
+     *
+     * @param objective  objective
+     * @param parts      number of parts to wait for
+     * @param dispatcher dispatcher of the objective callbacks
+     */
+    ObjectiveCompletion(Objective objective, int parts, ObjectiveCallbackDispatcher dispatcher) {
+        checkArgument(parts > 0, "Number of parts must be positive");
+        this.objective = checkNotNull(objective);
+        this.dispatcher = checkNotNull(dispatcher);
+        this.pendingParts = new AtomicInteger(parts);
+    }
+
+    /**
+     * Returns the tracked objective.
+     *
+     * @return objective
+     */
+    Objective objective() {
+        return objective;
+    }
+
+    /**
+     * Signals that one part has been applied.
+     */
+    void partDone() {
+        if (pendingParts.decrementAndGet() == 0 && completed.compareAndSet(false, true)) {
+            dispatcher.success(objective);
+        }
+    }
+
+    /**
+     * Signals that one part could not be applied.
+     *
+     * @param error error
+     */
+    void partFailed(ObjectiveError error) {
+        if (completed.compareAndSet(false, true)) {
+            dispatcher.fail(objective, error);
+        }
+    }
+
+    /**
+     * Returns true if the objective has already been notified.
+     *
+     * @return true if completed
+     */
+    boolean isCompleted() {
+        return completed.get();
+    }
+}
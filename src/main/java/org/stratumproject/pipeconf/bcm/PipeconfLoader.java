@@ -7,7 +7,11 @@
 package org.stratumproject.pipeconf.bcm;
 
 import org.onosproject.core.CoreService;
+import org.onosproject.net.DeviceId;
 import org.onosproject.net.behaviour.Pipeliner;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.pi.model.*;
 import org.onosproject.net.pi.service.PiPipeconfService;
 import org.onosproject.p4runtime.model.P4InfoParser;
@@ -38,10 +42,19 @@ public class PipeconfLoader {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private PiPipeconfService piPipeconfService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+
     @Activate
     protected void activate() {
         coreService.registerApplication(PIPELINE_APP_NAME);
+        deviceService.addListener(deviceListener);
         // Registers all pipeconf at component activation.
+        // Capabilities of a previous registration are read again.
+        BcmPipelineCapabilities.invalidate(PIPECONF_ID);
+        BcmTranslators.invalidate(PIPECONF_ID);
         try {
             piPipeconfService.register(buildFpmPipeconf());
         } catch (FileNotFoundException e) {
@@ -56,6 +69,16 @@ public class PipeconfLoader {
         if (piPipeconfService.getPipeconf(PIPECONF_ID).isPresent()) {
             piPipeconfService.unregister(PIPECONF_ID);
         }
+        BcmPipelineCapabilities.invalidate(PIPECONF_ID);
+        BcmTranslators.invalidate(PIPECONF_ID);
+        BcmObjectiveExecutor.shutdownShared();
+        deviceService.removeListener(deviceListener);
+        BcmPortCache.clear();
+        BcmPacketInLimiter.clear();
+        BcmActionCache.clear();
+        BcmTableOccupancy.clear();
+        BcmPortFailover.clear();
+        GroupCompletionTracker.clear();
         log.info("Stopped");
     }
 
@@ -95,4 +118,46 @@ public class PipeconfLoader {
             throw new FileNotFoundException(name);
         }
     }
+
+    /**
+     * Invalidates the cached ports of devices when their ports change, and
+     * the packet-in limits of devices when their configuration changes.
+     * Port changes also trigger the failover of the groups using the port.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_UPDATED:
+                case DEVICE_REMOVED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case PORT_ADDED:
+                case PORT_UPDATED:
+                case PORT_REMOVED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            BcmPortCache.invalidate(deviceId);
+            if (event.type() == DeviceEvent.Type.DEVICE_REMOVED) {
+                BcmPacketInLimiter.remove(deviceId);
+                BcmTableOccupancy.remove(deviceId);
+                BcmPortFailover.remove(deviceId);
+                GroupCompletionTracker.remove(deviceId);
+            } else if (event.type() == DeviceEvent.Type.DEVICE_UPDATED) {
+                BcmPacketInLimiter.invalidateLimits(deviceId);
+            } else if (event.type() == DeviceEvent.Type.PORT_UPDATED
+                    || event.type() == DeviceEvent.Type.PORT_REMOVED) {
+                BcmPortFailover.portChanged(deviceId, event.port(),
+                                            event.type() == DeviceEvent.Type.PORT_REMOVED);
+            }
+        }
+    }
 }
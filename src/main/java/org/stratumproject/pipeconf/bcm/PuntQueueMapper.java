@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthTypeCriterion;
+import org.onosproject.net.flow.criteria.IPProtocolCriterion;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.DEFAULT_QUEUE_ID;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineConstants.QUEUE_ID;
+
+/**
+ * Maps punt selectors to CPU queues, so that control plane protocols can be
+ * sent to different queues than other punted traffic.
+ * <p>
+ * The mapping is given as a comma-separated list of
+ * {@code ethType[/ipProto]=queueId} entries, plus an optional
+ * {@code default=queueId} entry, e.g.
+ * {@code 0x88cc=7,0x8809=7,0x0800/6=6,0x0806=2,default=0}. Numbers are
+ * decimal or hexadecimal with a {@code 0x} prefix. An entry with an IP
+ * protocol takes precedence over the entry of its ethertype only.
+ */
+final class PuntQueueMapper {
+
+    private static final Logger log = getLogger(PuntQueueMapper.class);
+
+    private static final String DEFAULT_KEY = "default";
+    // IP protocol of entries matching on the ethertype only.
+    private static final int ANY_IP_PROTO = -1;
+
+    private static final PuntQueueMapper DEFAULT = new PuntQueueMapper(ImmutableMap.of(), DEFAULT_QUEUE_ID);
+
+    // Keyed by ethertype and IP protocol, see key().
+    private final Map<Long, PiActionParam> queues;
+    private final PiActionParam defaultQueue;
+
+    private PuntQueueMapper(Map<Long, PiActionParam> queues, PiActionParam defaultQueue) {
+        this.queues = queues;
+        this.defaultQueue = defaultQueue;
+    }
+
+    /**
+     * Returns a mapper sending all punted packets to the default queue.
+     *
+     * @return punt queue mapper
+     */
+    static PuntQueueMapper defaultMapper() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a mapper built from the given configuration. Invalid entries
+     * are logged and ignored.
+     *
+     * @param config mapping configuration, can be null
+     * @return punt queue mapper
+     */
+    static PuntQueueMapper parse(String config) {
+        if (config == null || config.trim().isEmpty()) {
+            return DEFAULT;
+        }
+        // Queue IDs are shared by all entries using them.
+        final Map<Integer, PiActionParam> params = Maps.newHashMap();
+        final Map<Long, PiActionParam> queues = Maps.newHashMap();
+        PiActionParam defaultQueue = DEFAULT_QUEUE_ID;
+        for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(config)) {
+            try {
+                final List<String> keyValue = Splitter.on('=').trimResults().splitToList(entry);
+                if (keyValue.size() != 2) {
+                    throw new IllegalArgumentException("expected <match>=<queueId>");
+                }
+                final int queueId = parseInt(keyValue.get(1), Integer.MAX_VALUE);
+                final PiActionParam param = params.computeIfAbsent(
+                        queueId, q -> new PiActionParam(QUEUE_ID, q));
+                if (keyValue.get(0).equalsIgnoreCase(DEFAULT_KEY)) {
+                    defaultQueue = param;
+                    continue;
+                }
+                final List<String> match = Splitter.on('/').trimResults().splitToList(keyValue.get(0));
+                if (match.size() > 2) {
+                    throw new IllegalArgumentException("expected <ethType>[/<ipProto>]");
+                }
+                final int ethType = parseInt(match.get(0), 0xFFFF);
+                final int ipProto = match.size() == 2 ? parseInt(match.get(1), 0xFF) : ANY_IP_PROTO;
+                queues.put(key(ethType, ipProto), param);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid punt queue mapping '{}': {}", entry, e.getMessage());
+            }
+        }
+        return new PuntQueueMapper(ImmutableMap.copyOf(queues), defaultQueue);
+    }
+
+    /**
+     * Returns the queue ID action parameter for packets punted by a flow rule
+     * with the given selector.
+     *
+     * @param selector punt selector
+     * @return queue ID action parameter
+     */
+    PiActionParam queueId(TrafficSelector selector) {
+        if (queues.isEmpty()) {
+            return defaultQueue;
+        }
+        final EthTypeCriterion ethType = (EthTypeCriterion) selector.getCriterion(Criterion.Type.ETH_TYPE);
+        if (ethType == null) {
+            return defaultQueue;
+        }
+        final int ethTypeValue = ethType.ethType().toShort() & 0xFFFF;
+        final IPProtocolCriterion ipProto = (IPProtocolCriterion) selector.getCriterion(Criterion.Type.IP_PROTO);
+        if (ipProto != null) {
+            final PiActionParam queue = queues.get(key(ethTypeValue, ipProto.protocol()));
+            if (queue != null) {
+                return queue;
+            }
+        }
+        final PiActionParam queue = queues.get(key(ethTypeValue, ANY_IP_PROTO));
+        return queue == null ? defaultQueue : queue;
+    }
+
+    private static long key(int ethType, int ipProto) {
+        return ((long) ethType << 32) | (ipProto & 0xFFFFFFFFL);
+    }
+
+    private static int parseInt(String value, int max) {
+        final int parsed = value.startsWith("0x") || value.startsWith("0X")
+                ? Integer.parseInt(value.substring(2), 16)
+                : Integer.parseInt(value);
+        if (parsed < 0 || parsed > max) {
+            throw new IllegalArgumentException("value out of range " + value);
+        }
+        return parsed;
+    }
+}
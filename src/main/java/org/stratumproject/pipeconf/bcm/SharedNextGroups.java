@@ -0,0 +1,602 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.bucketWeights;
+
+/**
+ * Action profile groups of the next objectives of a device. Next objectives
+ * with the same buckets share the same group, which is removed once the last
+ * of them is removed; forwarding objectives are translated with the group of
+ * their next objective (see {@link #groupId(int)}).
+ * <p>
+ * Changing the buckets of a shared group moves the next objective to a group
+ * with the new buckets, either an existing one or a new one, and its
+ * forwarding flow rules must be pointed to that group. Groups are never
+ * merged when their buckets become equal afterwards.
+ * <p>
+ * The table is updated as soon as a group operation is admitted, and rolled
+ * back if the device rejects it (see {@link #rollback(GroupUpdate)}).
+ */
+final class SharedNextGroups {
+
+    private static final Logger log = getLogger(SharedNextGroups.class);
+
+    private final DeviceId deviceId;
+    private final boolean sharing;
+    // Read without lock when translating forwarding objectives.
+    private final ConcurrentIntObjectMap<SharedGroup> groupsByNextId = new ConcurrentIntObjectMap<>();
+    // Guarded by this.
+    private final Map<GroupContent, SharedGroup> groupsByContent = Maps.newHashMap();
+    private final Map<Integer, SharedGroup> groupsById = Maps.newHashMap();
+    private int nextSpareGroupId = Integer.MAX_VALUE;
+
+    /**
+     * Creates a new shared group table.
+     *
+     * @param deviceId device ID
+     * @param sharing  false to give each next objective a group of its own
+     */
+    SharedNextGroups(DeviceId deviceId, boolean sharing) {
+        this.deviceId = checkNotNull(deviceId);
+        this.sharing = sharing;
+    }
+
+    /**
+     * Returns the ID of the group used by the given next objective.
+     *
+     * @param nextId next objective ID
+     * @return group ID, the next objective ID if the next objective has no
+     * group yet
+     */
+    int groupId(int nextId) {
+        final SharedGroup group = groupsByNextId.get(nextId);
+        return group == null ? nextId : group.groupId;
+    }
+
+    /**
+     * Returns the ID of the group used by the given next objective, if any.
+     *
+     * @param nextId next objective ID
+     * @return group ID, or -1 if the next objective has no group
+     */
+    int groupIdOrNone(int nextId) {
+        final SharedGroup group = groupsByNextId.get(nextId);
+        return group == null ? -1 : group.groupId;
+    }
+
+    /**
+     * Restores the group of the given next objective from the group on the
+     * device, e.g. after a pipeliner re-init or a mastership change.
+     *
+     * @param nextId next objective ID
+     * @param group  group of the next objective on the device
+     */
+    synchronized void restore(int nextId, GroupDescription group) {
+        if (!(group.appCookie() instanceof PiGroupKey) || groupsByNextId.get(nextId) != null) {
+            return;
+        }
+        final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+        SharedGroup restored = groupsById.get(groupKey.groupId());
+        if (restored == null) {
+            restored = new SharedGroup(groupKey.groupId(), new GroupContent(
+                    groupKey.tableId(), groupKey.actionProfileId(), bucketWeights(group.buckets())),
+                                       group.appId());
+            register(restored);
+        }
+        join(nextId, restored);
+    }
+
+    /**
+     * Computes the group operation to apply for the given next objective and
+     * the group it has been translated to. The table is updated only if the
+     * operation is admitted.
+     *
+     * @param obj       next objective
+     * @param group     group of the next objective translation
+     * @param admission returns true if the group operation can be applied
+     * @return group operation, or null if not admitted
+     */
+    synchronized GroupUpdate update(NextObjective obj, GroupDescription group,
+                                    Predicate<GroupUpdate> admission) {
+        final GroupUpdate update = prepare(obj, group);
+        if (!admission.test(update)) {
+            return null;
+        }
+        update.commit.run();
+        return update;
+    }
+
+    /**
+     * Undoes the given group operation, once rejected by the device. A next
+     * objective joining or moving to a group which fails to be added leaves
+     * it, going back to its previous group if any, and buckets updated in
+     * place are restored. Nothing is undone if the next objective has been
+     * updated since.
+     *
+     * @param update group operation
+     * @return true if the reservation of the group operation must be
+     * released, false if the group is still used by other next objectives
+     */
+    synchronized boolean rollback(GroupUpdate update) {
+        return update.rollback.getAsBoolean();
+    }
+
+    private GroupUpdate prepare(NextObjective obj, GroupDescription group) {
+        final SharedGroup current = groupsByNextId.get(obj.id());
+        if (!(group.appCookie() instanceof PiGroupKey)) {
+            return new GroupUpdate(obj.op(), group, -1, () -> { });
+        }
+        switch (obj.op()) {
+            case ADD:
+                if (current != null) {
+                    // Already added, the current group is kept.
+                    return new GroupUpdate(obj.op(), current.description(group.appId()), -1,
+                                           () -> { }, () -> false);
+                }
+                return add(obj.id(), group);
+            case REMOVE:
+                if (current == null) {
+                    return new GroupUpdate(obj.op(), group, -1, () -> { });
+                }
+                return remove(obj.id(), current, group.appId());
+            case ADD_TO_EXISTING:
+            case REMOVE_FROM_EXISTING:
+            case MODIFY:
+                if (current == null) {
+                    return new GroupUpdate(obj.op(), group, -1, () -> { });
+                }
+                return modify(obj, current, group);
+            default:
+                return new GroupUpdate(obj.op(), group, -1, () -> { });
+        }
+    }
+
+    private GroupUpdate add(int nextId, GroupDescription group) {
+        final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+        final GroupContent content = new GroupContent(groupKey.tableId(), groupKey.actionProfileId(),
+                                                      bucketWeights(group.buckets()));
+        final SharedGroup existing = sharing ? groupsByContent.get(content) : null;
+        if (existing != null) {
+            return new GroupUpdate(Objective.Operation.ADD, existing.description(group.appId()), -1, () -> {
+                log.debug("Next {} of {} shares group {} with {} other next(s)",
+                          nextId, deviceId, existing.groupId, existing.nextIds.size());
+                join(nextId, existing);
+            }, () -> leave(nextId, existing));
+        }
+        final SharedGroup created = new SharedGroup(allocateGroupId(nextId), content, group.appId());
+        return new GroupUpdate(Objective.Operation.ADD, created.description(group.appId()), -1, () -> {
+            register(created);
+            join(nextId, created);
+        }, () -> leave(nextId, created));
+    }
+
+    private GroupUpdate remove(int nextId, SharedGroup current, ApplicationId appId) {
+        final boolean last = current.nextIds.size() == 1;
+        final Runnable commit = () -> {
+            groupsByNextId.remove(nextId);
+            current.nextIds.remove(nextId);
+            if (last) {
+                unregister(current);
+            }
+        };
+        // The group is removed only with the last next objective using it.
+        return last ? new GroupUpdate(Objective.Operation.REMOVE, current.description(appId), -1, commit)
+                : new GroupUpdate(null, null, -1, commit);
+    }
+
+    private GroupUpdate modify(NextObjective obj, SharedGroup current, GroupDescription group) {
+        final Map<TrafficTreatment, Integer> weights = bucketWeights(group.buckets());
+        final Map<TrafficTreatment, Integer> buckets = Maps.newLinkedHashMap(current.content.buckets);
+        boolean reweighted = false;
+        switch (obj.op()) {
+            case ADD_TO_EXISTING:
+                // Buckets already present take the new weight.
+                for (Map.Entry<TrafficTreatment, Integer> entry : weights.entrySet()) {
+                    final Integer previous = buckets.put(entry.getKey(), entry.getValue());
+                    reweighted |= previous != null && !previous.equals(entry.getValue());
+                }
+                break;
+            case REMOVE_FROM_EXISTING:
+                buckets.keySet().removeAll(weights.keySet());
+                break;
+            default:
+                buckets.clear();
+                buckets.putAll(weights);
+                break;
+        }
+        final GroupContent content = new GroupContent(
+                current.content.tableId, current.content.actionProfileId, buckets);
+        if (current.nextIds.size() == 1 || content.equals(current.content)) {
+            // Not shared (or unchanged), updated in place. Adding buckets
+            // does not change the weight of the existing ones, all buckets
+            // are set instead.
+            final GroupContent previous = current.content;
+            final BooleanSupplier rollback = () -> {
+                if (current.content == content) {
+                    setContent(current, previous);
+                }
+                return true;
+            };
+            return reweighted
+                    ? new GroupUpdate(Objective.Operation.MODIFY, current.description(content, group.appId()), -1,
+                                      () -> setContent(current, content), rollback)
+                    : new GroupUpdate(obj.op(), current.rekey(group), -1,
+                                      () -> setContent(current, content), rollback);
+        }
+        final SharedGroup existing = groupsByContent.get(content);
+        final SharedGroup target = existing != null ? existing
+                : new SharedGroup(allocateGroupId(obj.id()), content, group.appId());
+        return new GroupUpdate(Objective.Operation.ADD, target.description(group.appId()), current.groupId, () -> {
+            log.debug("Next {} of {} moves from group {} to group {}",
+                      obj.id(), deviceId, current.groupId, target.groupId);
+            current.nextIds.remove(obj.id());
+            if (existing == null) {
+                register(target);
+            }
+            join(obj.id(), target);
+        }, () -> {
+            if (groupsByNextId.get(obj.id()) != target) {
+                return false;
+            }
+            final boolean unused = leave(obj.id(), target);
+            if (groupsById.get(current.groupId) == current) {
+                join(obj.id(), current);
+            } else {
+                log.warn("Group {} of next {} on {} no longer exists, next left without group",
+                         current.groupId, obj.id(), deviceId);
+            }
+            return unused;
+        });
+    }
+
+    /**
+     * Removes the buckets with the given actions from the group of the given
+     * next objective, i.e. from all the next objectives sharing the group,
+     * e.g. when the port of the buckets goes down.
+     *
+     * @param nextId  next objective ID
+     * @param actions bucket actions
+     * @return removed buckets, as a group description, or null if the group
+     * has none of the buckets
+     */
+    synchronized GroupDescription removeBuckets(int nextId, Set<TrafficTreatment> actions) {
+        final SharedGroup current = groupsByNextId.get(nextId);
+        if (current == null) {
+            return null;
+        }
+        final Map<TrafficTreatment, Integer> removed = Maps.newLinkedHashMap();
+        final Map<TrafficTreatment, Integer> kept = Maps.newLinkedHashMap();
+        current.content.buckets.forEach((action, weight) -> (actions.contains(action) ? removed : kept)
+                .put(action, weight));
+        if (removed.isEmpty()) {
+            return null;
+        }
+        current.removedActions.addAll(removed.keySet());
+        setContent(current, new GroupContent(current.content.tableId, current.content.actionProfileId, kept));
+        return current.description(groupBuckets(removed));
+    }
+
+    /**
+     * Adds back buckets removed by {@link #removeBuckets} which failed to be
+     * removed from the device.
+     *
+     * @param removed removed buckets, as a group description
+     */
+    synchronized void cancelRemoveBuckets(GroupDescription removed) {
+        final SharedGroup current = groupOf(removed);
+        if (current == null) {
+            return;
+        }
+        final Map<TrafficTreatment, Integer> buckets = Maps.newLinkedHashMap(current.content.buckets);
+        bucketWeights(removed.buckets()).forEach(buckets::putIfAbsent);
+        current.removedActions.removeAll(bucketWeights(removed.buckets()).keySet());
+        setContent(current, new GroupContent(current.content.tableId, current.content.actionProfileId, buckets));
+    }
+
+    /**
+     * Adds back buckets previously removed by {@link #removeBuckets}, if
+     * their group still exists and all the next objectives using it are
+     * accepted by the given filter. Buckets already present are not added
+     * again. Buckets not added back are forgotten, the group then keeps its
+     * current buckets.
+     *
+     * @param removed   removed buckets, as a group description
+     * @param nextIds   next objectives still using the buckets
+     * @param admission returns true if the buckets can be added
+     * @return added buckets, as a group description, or null if none
+     */
+    synchronized GroupDescription restoreBuckets(GroupDescription removed, IntPredicate nextIds,
+                                                 Predicate<GroupDescription> admission) {
+        final SharedGroup current = groupOf(removed);
+        if (current == null) {
+            return null;
+        }
+        final Map<TrafficTreatment, Integer> added = Maps.newLinkedHashMap(bucketWeights(removed.buckets()));
+        current.removedActions.removeAll(added.keySet());
+        added.keySet().removeAll(current.content.buckets.keySet());
+        // Not for next objectives which no longer want the buckets, e.g.
+        // updated during the outage.
+        if (added.isEmpty() || !current.nextIds.stream().allMatch(nextIds::test)) {
+            setContent(current, current.content);
+            return null;
+        }
+        final GroupDescription update = current.description(groupBuckets(added));
+        if (!admission.test(update)) {
+            setContent(current, current.content);
+            return null;
+        }
+        final Map<TrafficTreatment, Integer> buckets = Maps.newLinkedHashMap(current.content.buckets);
+        buckets.putAll(added);
+        setContent(current, new GroupContent(current.content.tableId, current.content.actionProfileId, buckets));
+        return update;
+    }
+
+    /**
+     * Removes buckets added back by {@link #restoreBuckets} which failed to
+     * be added to the device.
+     *
+     * @param added added buckets, as a group description
+     */
+    synchronized void cancelRestoreBuckets(GroupDescription added) {
+        final SharedGroup current = groupOf(added);
+        if (current == null) {
+            return;
+        }
+        final Map<TrafficTreatment, Integer> buckets = Maps.newLinkedHashMap(current.content.buckets);
+        buckets.keySet().removeAll(bucketWeights(added.buckets()).keySet());
+        setContent(current, new GroupContent(current.content.tableId, current.content.actionProfileId, buckets));
+    }
+
+    private SharedGroup groupOf(GroupDescription group) {
+        final PiGroupKey groupKey = (PiGroupKey) group.appCookie();
+        final SharedGroup current = groupsById.get(groupKey.groupId());
+        return current == null || !current.groupKey().equals(groupKey) ? null : current;
+    }
+
+    private static List<GroupBucket> groupBuckets(Map<TrafficTreatment, Integer> weights) {
+        final List<GroupBucket> buckets = Lists.newArrayListWithCapacity(weights.size());
+        weights.forEach((treatment, weight) -> buckets.add(
+                DefaultGroupBucket.createSelectGroupBucket(treatment, weight.shortValue())));
+        return buckets;
+    }
+
+    private void setContent(SharedGroup group, GroupContent content) {
+        if (!content.equals(group.content)) {
+            groupsByContent.remove(group.content, group);
+            group.content = content;
+        }
+        publish(group);
+    }
+
+    private void publish(SharedGroup group) {
+        // Groups missing the buckets of a failed port are not shared, their
+        // buckets are not the ones of their next objectives.
+        if (sharing && group.removedActions.isEmpty()) {
+            groupsByContent.putIfAbsent(group.content, group);
+        }
+    }
+
+    private void join(int nextId, SharedGroup group) {
+        group.nextIds.add(nextId);
+        groupsByNextId.put(nextId, group);
+    }
+
+    // Returns true if the group is no longer used.
+    private boolean leave(int nextId, SharedGroup group) {
+        if (groupsByNextId.get(nextId) != group) {
+            return false;
+        }
+        groupsByNextId.remove(nextId);
+        group.nextIds.remove(nextId);
+        if (!group.nextIds.isEmpty()) {
+            return false;
+        }
+        unregister(group);
+        return true;
+    }
+
+    private void register(SharedGroup group) {
+        groupsById.put(group.groupId, group);
+        publish(group);
+    }
+
+    private void unregister(SharedGroup group) {
+        groupsById.remove(group.groupId);
+        groupsByContent.remove(group.content, group);
+    }
+
+    private int allocateGroupId(int nextId) {
+        // The next objective ID, unless still used by a group shared with
+        // other next objectives. Spare IDs are taken from the top of the
+        // range, far from the IDs allocated to next objectives.
+        if (!groupsById.containsKey(nextId)) {
+            return nextId;
+        }
+        while (groupsById.containsKey(nextSpareGroupId)) {
+            nextSpareGroupId--;
+        }
+        return nextSpareGroupId--;
+    }
+
+    /**
+     * Group operation to apply for a next objective.
+     */
+    static final class GroupUpdate {
+
+        private final Objective.Operation op;
+        private final List<GroupDescription> groups;
+        private final int previousGroupId;
+        private final Runnable commit;
+        private final BooleanSupplier rollback;
+
+        private GroupUpdate(Objective.Operation op, GroupDescription group,
+                            int previousGroupId, Runnable commit) {
+            // Nothing to undo in the table.
+            this(op, group, previousGroupId, commit, () -> true);
+        }
+
+        private GroupUpdate(Objective.Operation op, GroupDescription group,
+                            int previousGroupId, Runnable commit, BooleanSupplier rollback) {
+            this.op = op;
+            this.groups = group == null ? ImmutableList.of() : ImmutableList.of(group);
+            this.previousGroupId = previousGroupId;
+            this.commit = commit;
+            this.rollback = rollback;
+        }
+
+        /**
+         * Returns the operation to apply to the groups, which might differ
+         * from the operation of the next objective.
+         *
+         * @return group operation, or null if there is nothing to apply
+         */
+        Objective.Operation op() {
+            return op;
+        }
+
+        /**
+         * Returns the groups to apply.
+         *
+         * @return groups, empty if there is nothing to apply
+         */
+        List<GroupDescription> groups() {
+            return groups;
+        }
+
+        /**
+         * Returns the group the next objective was moved from, its forwarding
+         * flow rules must be pointed to the new group.
+         *
+         * @return previous group ID, or -1 if the next objective did not move
+         */
+        int previousGroupId() {
+            return previousGroupId;
+        }
+
+        /**
+         * Returns the ID of the group of the next objective.
+         *
+         * @return group ID, or -1 if there is nothing to apply
+         */
+        int groupId() {
+            return groups.isEmpty() ? -1 : ((PiGroupKey) groups.get(0).appCookie()).groupId();
+        }
+    }
+
+    /**
+     * Group used by one or more next objectives.
+     */
+    private final class SharedGroup {
+
+        private final int groupId;
+        private final ApplicationId appId;
+        private final Set<Integer> nextIds = Sets.newHashSet();
+        // Actions of the buckets removed by a port failover, until restored.
+        private final Set<TrafficTreatment> removedActions = Sets.newHashSet();
+        private GroupContent content;
+
+        private SharedGroup(int groupId, GroupContent content, ApplicationId appId) {
+            this.groupId = groupId;
+            this.content = content;
+            this.appId = appId;
+        }
+
+        private PiGroupKey groupKey() {
+            return new PiGroupKey(content.tableId, content.actionProfileId, groupId);
+        }
+
+        private GroupDescription description(ApplicationId appId) {
+            return description(content, appId);
+        }
+
+        private GroupDescription description(GroupContent groupContent, ApplicationId appId) {
+            return new DefaultGroupDescription(
+                    deviceId, GroupDescription.Type.SELECT, new GroupBuckets(groupBuckets(groupContent.buckets)),
+                    groupKey(), groupId, appId);
+        }
+
+        private GroupDescription description(List<GroupBucket> buckets) {
+            return new DefaultGroupDescription(
+                    deviceId, GroupDescription.Type.SELECT, new GroupBuckets(buckets),
+                    groupKey(), groupId, appId);
+        }
+
+        private GroupDescription rekey(GroupDescription group) {
+            return new DefaultGroupDescription(
+                    deviceId, group.type(), group.buckets(), groupKey(), groupId, group.appId());
+        }
+    }
+
+    /**
+     * Content of a group, buckets are compared regardless of their order.
+     * Buckets are kept as weights by action, since the equality of group
+     * buckets ignores their weight.
+     */
+    private static final class GroupContent {
+
+        private final PiTableId tableId;
+        private final PiActionProfileId actionProfileId;
+        private final Map<TrafficTreatment, Integer> buckets;
+
+        private GroupContent(PiTableId tableId, PiActionProfileId actionProfileId,
+                             Map<TrafficTreatment, Integer> buckets) {
+            this.tableId = tableId;
+            this.actionProfileId = actionProfileId;
+            this.buckets = ImmutableMap.copyOf(buckets);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tableId, actionProfileId, buckets);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final GroupContent other = (GroupContent) obj;
+            return Objects.equals(this.tableId, other.tableId)
+                    && Objects.equals(this.actionProfileId, other.actionProfileId)
+                    && Objects.equals(this.buckets, other.buckets);
+        }
+    }
+}
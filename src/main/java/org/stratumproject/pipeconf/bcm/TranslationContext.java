@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onosproject.net.DeviceId;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Device-specific state used when translating objectives. Translators are
+ * shared by all devices using the same pipeconf, the context of the device
+ * is given with each translation.
+ */
+final class TranslationContext {
+
+    private final DeviceId deviceId;
+    private final BcmObjectiveStore objectiveStore;
+    private final PuntQueueMapper puntQueueMapper;
+    private final int wcmpMaxGroupSize;
+    private final SharedNextGroups nextGroups;
+
+    /**
+     * Creates a new translation context.
+     *
+     * @param deviceId         device ID
+     * @param objectiveStore   objective store of the device
+     * @param puntQueueMapper  CPU queue mapping of the device
+     * @param wcmpMaxGroupSize maximum number of members of a WCMP group, 0 to
+     *                         use the limit of the pipeline
+     * @param nextGroups       groups of the next objectives of the device
+     */
+    TranslationContext(DeviceId deviceId, BcmObjectiveStore objectiveStore,
+                       PuntQueueMapper puntQueueMapper, int wcmpMaxGroupSize,
+                       SharedNextGroups nextGroups) {
+        this.deviceId = checkNotNull(deviceId);
+        this.objectiveStore = checkNotNull(objectiveStore);
+        this.puntQueueMapper = checkNotNull(puntQueueMapper);
+        this.wcmpMaxGroupSize = wcmpMaxGroupSize;
+        this.nextGroups = checkNotNull(nextGroups);
+    }
+
+    /**
+     * Returns the device ID.
+     *
+     * @return device ID
+     */
+    DeviceId deviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Returns the objective store of the device.
+     *
+     * @return objective store
+     */
+    BcmObjectiveStore objectiveStore() {
+        return objectiveStore;
+    }
+
+    /**
+     * Returns the CPU queue mapping of the device.
+     *
+     * @return punt queue mapper
+     */
+    PuntQueueMapper puntQueueMapper() {
+        return puntQueueMapper;
+    }
+
+    /**
+     * Returns the maximum number of members of a WCMP group of the device.
+     *
+     * @return maximum group size, 0 if given by the pipeline
+     */
+    int wcmpMaxGroupSize() {
+        return wcmpMaxGroupSize;
+    }
+
+    /**
+     * Returns the groups of the next objectives of the device.
+     *
+     * @return next objective groups
+     */
+    SharedNextGroups nextGroups() {
+        return nextGroups;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.MplsLabel;
+import org.onlab.packet.VlanId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModEtherInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModMplsLabelInstruction;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction.ModVlanIdInstruction;
+
+/**
+ * The fields of a treatment used to build forwarding actions, decoded with a
+ * single pass over the instructions. As for {@link BcmPipelineUtils}, the
+ * first instruction of each kind wins.
+ */
+final class TreatmentView {
+
+    private PortNumber outPort;
+    private MacAddress ethSrc;
+    private MacAddress ethDst;
+    private MplsLabel mplsLabel;
+    private VlanId vlanId;
+
+    private TreatmentView() {
+    }
+
+    /**
+     * Decodes the given treatment.
+     *
+     * @param treatment traffic treatment
+     * @return treatment view
+     */
+    static TreatmentView of(TrafficTreatment treatment) {
+        final TreatmentView view = new TreatmentView();
+        for (Instruction instruction : treatment.allInstructions()) {
+            if (instruction.type() == Instruction.Type.OUTPUT) {
+                if (view.outPort == null) {
+                    view.outPort = ((Instructions.OutputInstruction) instruction).port();
+                }
+            } else if (instruction.type() == Instruction.Type.L2MODIFICATION) {
+                view.decodeL2((L2ModificationInstruction) instruction);
+            }
+        }
+        return view;
+    }
+
+    private void decodeL2(L2ModificationInstruction instruction) {
+        switch (instruction.subtype()) {
+            case ETH_SRC:
+                if (ethSrc == null) {
+                    ethSrc = ((ModEtherInstruction) instruction).mac();
+                }
+                break;
+            case ETH_DST:
+                if (ethDst == null) {
+                    ethDst = ((ModEtherInstruction) instruction).mac();
+                }
+                break;
+            case MPLS_LABEL:
+                if (mplsLabel == null) {
+                    mplsLabel = ((ModMplsLabelInstruction) instruction).label();
+                }
+                break;
+            case VLAN_ID:
+                if (vlanId == null) {
+                    vlanId = ((ModVlanIdInstruction) instruction).vlanId();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the output port.
+     *
+     * @return output port, or null
+     */
+    PortNumber outPort() {
+        return outPort;
+    }
+
+    /**
+     * Returns the source MAC address set by the treatment.
+     *
+     * @return MAC address, or null
+     */
+    MacAddress ethSrc() {
+        return ethSrc;
+    }
+
+    /**
+     * Returns the destination MAC address set by the treatment.
+     *
+     * @return MAC address, or null
+     */
+    MacAddress ethDst() {
+        return ethDst;
+    }
+
+    /**
+     * Returns the MPLS label set by the treatment.
+     *
+     * @return MPLS label, or null
+     */
+    MplsLabel mplsLabel() {
+        return mplsLabel;
+    }
+
+    /**
+     * Returns the VLAN ID set by the treatment.
+     *
+     * @return VLAN ID, or null
+     */
+    VlanId vlanId() {
+        return vlanId;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Normalization of WCMP weights. Weighted members are replicated by the
+ * device, the sum of the weights of a group is thus the number of members
+ * it uses and must not exceed the maximum group size.
+ */
+final class WcmpWeights {
+
+    private WcmpWeights() {
+        // Utility class.
+    }
+
+    /**
+     * Scales the given weights so that their sum does not exceed the given
+     * maximum group size, using the largest remainder method. Every weight
+     * is kept at least 1, weights are finally divided by their greatest
+     * common divisor.
+     *
+     * @param weights      positive weights
+     * @param maxGroupSize maximum sum of the weights, 0 if unbounded
+     * @return normalized weights, in the same order
+     * @throws IllegalArgumentException if there are more weights than the
+     *                                  maximum group size
+     */
+    static int[] normalize(int[] weights, int maxGroupSize) {
+        checkArgument(maxGroupSize <= 0 || weights.length <= maxGroupSize,
+                      "%s buckets exceed the maximum group size %s", weights.length, maxGroupSize);
+        final long total = Arrays.stream(weights).asLongStream().sum();
+        if (maxGroupSize <= 0 || total <= maxGroupSize) {
+            return reduce(weights.clone());
+        }
+        final int[] scaled = new int[weights.length];
+        final double[] remainders = new double[weights.length];
+        long sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            final double quota = (double) weights[i] * maxGroupSize / total;
+            scaled[i] = Math.max(1, (int) quota);
+            remainders[i] = quota - scaled[i];
+            sum += scaled[i];
+        }
+        // Members left are given to the largest remainders, members in excess
+        // (weights raised to 1) are taken from the smallest ones.
+        final Integer[] order = IntStream.range(0, weights.length).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, Comparator.comparingDouble(i -> -remainders[i]));
+        for (int k = 0; sum < maxGroupSize; k++) {
+            scaled[order[k % order.length]]++;
+            sum++;
+        }
+        for (int k = order.length - 1; sum > maxGroupSize; k--) {
+            final int i = order[Math.floorMod(k, order.length)];
+            if (scaled[i] > 1) {
+                scaled[i]--;
+                sum--;
+            }
+        }
+        return reduce(scaled);
+    }
+
+    private static int[] reduce(int[] weights) {
+        int gcd = 0;
+        for (int weight : weights) {
+            gcd = gcd(gcd, weight);
+        }
+        if (gcd > 1) {
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] /= gcd;
+            }
+        }
+        return weights;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
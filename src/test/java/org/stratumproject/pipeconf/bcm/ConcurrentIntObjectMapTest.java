@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ConcurrentIntObjectMap}.
+ */
+public class ConcurrentIntObjectMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertTrue(map.containsKey(1));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testComputeIfAbsent() {
+        final ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>();
+        assertEquals("1", map.computeIfAbsent(1, String::valueOf));
+        assertEquals("1", map.computeIfAbsent(1, key -> {
+            throw new AssertionError("Function invoked for a present key");
+        }));
+    }
+
+    @Test
+    public void testResize() {
+        // A single segment, grown many times from its initial capacity.
+        final ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>(1);
+        for (int key = 0; key < 10000; key++) {
+            map.put(key, key);
+        }
+        assertEquals(10000, map.size());
+        for (int key = 0; key < 10000; key++) {
+            assertEquals(Integer.valueOf(key), map.get(key));
+        }
+        assertNull(map.get(10000));
+    }
+
+    @Test
+    public void testRemoveKeepsProbeChains() {
+        // Few slots and many keys, entries are moved back on removal and
+        // must remain reachable from their home slot.
+        final ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>(1);
+        final Map<Integer, Integer> expected = Maps.newHashMap();
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            final int key = random.nextInt(64);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            if (i % 1000 == 0) {
+                assertContent(expected, map);
+            }
+        }
+        assertContent(expected, map);
+    }
+
+    @Test
+    public void testRemoveAll() {
+        final ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>(2);
+        for (int key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+        // Every other key first, then the remaining ones in reverse order.
+        for (int key = 0; key < 1000; key += 2) {
+            assertEquals(Integer.valueOf(key), map.remove(key));
+        }
+        for (int key = 1; key < 1000; key += 2) {
+            assertEquals(Integer.valueOf(key), map.get(key));
+        }
+        for (int key = 999; key > 0; key -= 2) {
+            assertEquals(Integer.valueOf(key), map.remove(key));
+        }
+        assertEquals(0, map.size());
+        map.forEach((value, key) -> {
+            throw new AssertionError("Entry left after removal: " + key);
+        });
+    }
+
+    @Test
+    public void testForEach() {
+        final ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>();
+        final Map<Integer, Integer> expected = Maps.newHashMap();
+        for (int key = -500; key < 500; key++) {
+            map.put(key, key * 2);
+            expected.put(key, key * 2);
+        }
+        assertContent(expected, map);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentsNotPowerOfTwo() {
+        new ConcurrentIntObjectMap<>(3);
+    }
+
+    private static void assertContent(Map<Integer, Integer> expected, ConcurrentIntObjectMap<Integer> map) {
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        final Map<Integer, Integer> actual = Maps.newHashMap();
+        map.forEach((value, key) -> assertNull("Key visited twice: " + key, actual.put(key, value)));
+        assertEquals(expected, actual);
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flowobjective.DefaultNextObjective;
+import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.DefaultGroupDescription;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.stratumproject.pipeconf.bcm.BcmPipelineUtils.bucketWeights;
+
+/**
+ * Tests for {@link SharedNextGroups}.
+ */
+public class SharedNextGroupsTest {
+
+    private static final DeviceId DEVICE_ID = DeviceId.deviceId("device:1");
+    private static final ApplicationId APP_ID = new DefaultApplicationId(1, "test");
+    private static final PiTableId TABLE_ID = PiTableId.of("FabricIngress.next.hashed");
+    private static final PiActionProfileId PROFILE_ID = PiActionProfileId.of("FabricIngress.next.hashed_selector");
+
+    private SharedNextGroups nextGroups;
+
+    @Before
+    public void setUp() {
+        nextGroups = new SharedNextGroups(DEVICE_ID, true);
+    }
+
+    @Test
+    public void testEqualBucketsShareGroup() {
+        final SharedNextGroups.GroupUpdate first = add(1, 1, 2);
+        assertEquals(Objective.Operation.ADD, first.op());
+        assertEquals(1, first.groupId());
+        final SharedNextGroups.GroupUpdate second = add(2, 2, 1);
+        assertEquals(Objective.Operation.ADD, second.op());
+        assertEquals(1, second.groupId());
+        assertEquals(-1, second.previousGroupId());
+        assertEquals(1, nextGroups.groupId(2));
+        // Not the same buckets.
+        assertEquals(3, add(3, 1, 3).groupId());
+    }
+
+    @Test
+    public void testSharingDisabled() {
+        nextGroups = new SharedNextGroups(DEVICE_ID, false);
+        add(1, 1, 2);
+        add(2, 1, 2);
+        assertEquals(1, nextGroups.groupId(1));
+        assertEquals(2, nextGroups.groupId(2));
+    }
+
+    @Test
+    public void testGroupIdWithoutGroup() {
+        assertEquals(7, nextGroups.groupId(7));
+        assertEquals(-1, nextGroups.groupIdOrNone(7));
+    }
+
+    @Test
+    public void testNotAdmitted() {
+        assertNull(nextGroups.update(next(1, Objective.Operation.ADD, 1), group(1, 1), u -> false));
+        assertEquals(-1, nextGroups.groupIdOrNone(1));
+        // The group can still be created afterwards.
+        assertEquals(1, add(1, 1).groupId());
+    }
+
+    @Test
+    public void testRemoveLastNext() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final SharedNextGroups.GroupUpdate first = update(1, Objective.Operation.REMOVE, 1, 2);
+        assertNull(first.op());
+        assertTrue(first.groups().isEmpty());
+        assertEquals(-1, nextGroups.groupIdOrNone(1));
+        final SharedNextGroups.GroupUpdate last = update(2, Objective.Operation.REMOVE, 1, 2);
+        assertEquals(Objective.Operation.REMOVE, last.op());
+        assertEquals(1, last.groupId());
+        assertEquals(-1, nextGroups.groupIdOrNone(2));
+        // No longer shared.
+        assertEquals(3, add(3, 1, 2).groupId());
+    }
+
+    @Test
+    public void testUpdateNotSharedInPlace() {
+        add(1, 1);
+        final SharedNextGroups.GroupUpdate update = update(1, Objective.Operation.ADD_TO_EXISTING, 2);
+        assertEquals(Objective.Operation.ADD_TO_EXISTING, update.op());
+        assertEquals(1, update.groupId());
+        assertEquals(-1, update.previousGroupId());
+        // The group now has both buckets.
+        assertEquals(1, add(2, 1, 2).groupId());
+    }
+
+    @Test
+    public void testUpdateSharedMovesToNewGroup() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final SharedNextGroups.GroupUpdate update = update(2, Objective.Operation.REMOVE_FROM_EXISTING, 2);
+        assertEquals(Objective.Operation.ADD, update.op());
+        assertEquals(1, update.previousGroupId());
+        assertEquals(2, update.groupId());
+        assertEquals(ImmutableSet.of(treatment(1)), bucketWeights(update.groups().get(0).buckets()).keySet());
+        assertEquals(1, nextGroups.groupId(1));
+        assertEquals(2, nextGroups.groupId(2));
+        // The previous group is no longer shared with next 2.
+        assertEquals(Objective.Operation.REMOVE, update(1, Objective.Operation.REMOVE, 1, 2).op());
+    }
+
+    @Test
+    public void testUpdateSharedMovesToExistingGroup() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        add(3, 1);
+        final SharedNextGroups.GroupUpdate update = update(2, Objective.Operation.MODIFY, 1);
+        assertEquals(Objective.Operation.ADD, update.op());
+        assertEquals(1, update.previousGroupId());
+        assertEquals(3, update.groupId());
+        assertEquals(3, nextGroups.groupId(2));
+    }
+
+    @Test
+    public void testMoveAllocatesSpareGroupId() {
+        // Group 1 is still used by next 2, next 1 moves to a group with
+        // another ID.
+        add(1, 1);
+        add(2, 1);
+        final SharedNextGroups.GroupUpdate update = update(1, Objective.Operation.ADD_TO_EXISTING, 2);
+        assertNotEquals(1, update.groupId());
+        assertEquals(update.groupId(), nextGroups.groupId(1));
+        assertEquals(1, nextGroups.groupId(2));
+    }
+
+    @Test
+    public void testRollbackJoin() {
+        add(1, 1);
+        final SharedNextGroups.GroupUpdate update = add(2, 1);
+        // The group is still used by next 1, its reservation is kept.
+        assertFalse(nextGroups.rollback(update));
+        assertEquals(-1, nextGroups.groupIdOrNone(2));
+        assertEquals(1, nextGroups.groupId(1));
+    }
+
+    @Test
+    public void testRollbackCreate() {
+        final SharedNextGroups.GroupUpdate update = add(1, 1);
+        assertTrue(nextGroups.rollback(update));
+        assertEquals(-1, nextGroups.groupIdOrNone(1));
+        // The group is no longer shared.
+        assertEquals(2, add(2, 1).groupId());
+    }
+
+    @Test
+    public void testRollbackAddAgain() {
+        add(1, 1);
+        final SharedNextGroups.GroupUpdate update = add(1, 1);
+        assertEquals(1, update.groupId());
+        assertFalse(nextGroups.rollback(update));
+        assertEquals(1, nextGroups.groupId(1));
+    }
+
+    @Test
+    public void testRollbackInPlace() {
+        add(1, 1);
+        final SharedNextGroups.GroupUpdate update = update(1, Objective.Operation.ADD_TO_EXISTING, 2);
+        assertTrue(nextGroups.rollback(update));
+        // The group is back to its previous buckets.
+        assertEquals(1, add(2, 1).groupId());
+        assertEquals(3, add(3, 1, 2).groupId());
+    }
+
+    @Test
+    public void testRollbackMoveToNewGroup() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final SharedNextGroups.GroupUpdate update = update(2, Objective.Operation.REMOVE_FROM_EXISTING, 2);
+        assertTrue(nextGroups.rollback(update));
+        assertEquals(1, nextGroups.groupId(2));
+        // Group 1 is shared again.
+        assertNull(update(1, Objective.Operation.REMOVE, 1, 2).op());
+    }
+
+    @Test
+    public void testRollbackMoveToExistingGroup() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        add(3, 1);
+        final SharedNextGroups.GroupUpdate update = update(2, Objective.Operation.MODIFY, 1);
+        // Group 3 is still used by next 3.
+        assertFalse(nextGroups.rollback(update));
+        assertEquals(1, nextGroups.groupId(2));
+        assertEquals(3, nextGroups.groupId(3));
+    }
+
+    @Test
+    public void testRollbackAfterNewerUpdate() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final SharedNextGroups.GroupUpdate update = update(2, Objective.Operation.REMOVE_FROM_EXISTING, 2);
+        update(2, Objective.Operation.REMOVE, 1);
+        assertFalse(nextGroups.rollback(update));
+        assertEquals(-1, nextGroups.groupIdOrNone(2));
+    }
+
+    @Test
+    public void testRemovedBucketsNotShared() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        assertEquals(1, ((PiGroupKey) removed.appCookie()).groupId());
+        assertEquals(ImmutableSet.of(treatment(2)), bucketWeights(removed.buckets()).keySet());
+        assertNull(nextGroups.removeBuckets(2, ImmutableSet.of(treatment(2))));
+        // Neither the buckets of the next objectives nor the buckets left.
+        assertEquals(3, add(3, 1, 2).groupId());
+        assertEquals(4, add(4, 1).groupId());
+    }
+
+    @Test
+    public void testRestoreBuckets() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        final GroupDescription added = nextGroups.restoreBuckets(removed, nextId -> true, g -> true);
+        assertEquals(ImmutableSet.of(treatment(2)), bucketWeights(added.buckets()).keySet());
+        // Shared again.
+        assertEquals(1, add(3, 1, 2).groupId());
+    }
+
+    @Test
+    public void testRestoreBucketsNotWantedByAllNexts() {
+        add(1, 1, 2);
+        add(2, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        assertNull(nextGroups.restoreBuckets(removed, nextId -> nextId != 2, g -> true));
+        // The group keeps the buckets left, shared with these.
+        assertEquals(1, add(3, 1).groupId());
+        assertEquals(4, add(4, 1, 2).groupId());
+    }
+
+    @Test
+    public void testRestoreBucketsNotAdmitted() {
+        add(1, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        assertNull(nextGroups.restoreBuckets(removed, nextId -> true, g -> false));
+        assertEquals(1, add(2, 1).groupId());
+    }
+
+    @Test
+    public void testCancelRemoveBuckets() {
+        add(1, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        nextGroups.cancelRemoveBuckets(removed);
+        assertEquals(1, add(2, 1, 2).groupId());
+    }
+
+    @Test
+    public void testCancelRestoreBuckets() {
+        add(1, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        final GroupDescription added = nextGroups.restoreBuckets(removed, nextId -> true, g -> true);
+        nextGroups.cancelRestoreBuckets(added);
+        assertEquals(1, add(2, 1).groupId());
+    }
+
+    @Test
+    public void testRestoreAfterRemoval() {
+        add(1, 1, 2);
+        final GroupDescription removed = nextGroups.removeBuckets(1, ImmutableSet.of(treatment(2)));
+        update(1, Objective.Operation.REMOVE, 1);
+        assertNull(nextGroups.restoreBuckets(removed, nextId -> true, g -> true));
+    }
+
+    @Test
+    public void testRestoreFromDevice() {
+        nextGroups.restore(1, group(5, 1, 2));
+        nextGroups.restore(2, group(5, 1, 2));
+        assertEquals(5, nextGroups.groupId(1));
+        assertEquals(5, nextGroups.groupId(2));
+        assertEquals(5, add(3, 1, 2).groupId());
+    }
+
+    private SharedNextGroups.GroupUpdate add(int nextId, int... ports) {
+        return update(nextId, Objective.Operation.ADD, ports);
+    }
+
+    private SharedNextGroups.GroupUpdate update(int nextId, Objective.Operation op, int... ports) {
+        return nextGroups.update(next(nextId, op, ports), group(nextId, ports), u -> true);
+    }
+
+    private static NextObjective next(int nextId, Objective.Operation op, int... ports) {
+        final NextObjective.Builder builder = DefaultNextObjective.builder()
+                .withId(nextId)
+                .withType(NextObjective.Type.HASHED)
+                .fromApp(APP_ID);
+        Arrays.stream(ports).forEach(port -> builder.addTreatment(treatment(port)));
+        switch (op) {
+            case ADD:
+                return builder.add();
+            case REMOVE:
+                return builder.remove();
+            case ADD_TO_EXISTING:
+                return builder.addToExisting();
+            case REMOVE_FROM_EXISTING:
+                return builder.removeFromExisting();
+            case MODIFY:
+                return builder.modify();
+            default:
+                throw new IllegalArgumentException(op.toString());
+        }
+    }
+
+    private static GroupDescription group(int groupId, int... ports) {
+        final List<GroupBucket> buckets = Arrays.stream(ports)
+                .mapToObj(port -> DefaultGroupBucket.createSelectGroupBucket(treatment(port)))
+                .collect(Collectors.toList());
+        return new DefaultGroupDescription(
+                DEVICE_ID, GroupDescription.Type.SELECT, new GroupBuckets(buckets),
+                new PiGroupKey(TABLE_ID, PROFILE_ID, groupId), groupId, APP_ID);
+    }
+
+    private static TrafficTreatment treatment(int port) {
+        return DefaultTrafficTreatment.builder().setOutput(PortNumber.portNumber(port)).build();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-present Open Networking Foundation
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.stratumproject.pipeconf.bcm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link WcmpWeights}.
+ */
+public class WcmpWeightsTest {
+
+    @Test
+    public void testUnboundedReducedByGcd() {
+        assertArrayEquals(new int[]{1, 2, 3}, WcmpWeights.normalize(new int[]{2, 4, 6}, 0));
+        assertArrayEquals(new int[]{3, 5}, WcmpWeights.normalize(new int[]{3, 5}, 0));
+    }
+
+    @Test
+    public void testWithinBoundReducedByGcd() {
+        assertArrayEquals(new int[]{1, 1}, WcmpWeights.normalize(new int[]{3, 3}, 8));
+        assertArrayEquals(new int[]{2, 1}, WcmpWeights.normalize(new int[]{4, 2}, 6));
+    }
+
+    @Test
+    public void testInputNotModified() {
+        final int[] weights = {2, 4};
+        WcmpWeights.normalize(weights, 0);
+        assertArrayEquals(new int[]{2, 4}, weights);
+    }
+
+    @Test
+    public void testScaledExactly() {
+        assertArrayEquals(new int[]{5, 3, 2}, WcmpWeights.normalize(new int[]{50, 30, 20}, 10));
+    }
+
+    @Test
+    public void testLargestRemainder() {
+        // Quotas 3.5, 2.1 and 1.4: the member left goes to the first weight.
+        assertArrayEquals(new int[]{4, 2, 1}, WcmpWeights.normalize(new int[]{5, 3, 2}, 7));
+        // Same weights in another order, the order is kept.
+        assertArrayEquals(new int[]{1, 4, 2}, WcmpWeights.normalize(new int[]{2, 5, 3}, 7));
+    }
+
+    @Test
+    public void testScaledThenReducedByGcd() {
+        assertArrayEquals(new int[]{1, 1}, WcmpWeights.normalize(new int[]{50, 50}, 4));
+    }
+
+    @Test
+    public void testSmallWeightsKeptAtOne() {
+        // Small weights are raised to 1, members in excess are taken from
+        // the large one.
+        assertArrayEquals(new int[]{1, 1, 1, 1}, WcmpWeights.normalize(new int[]{100, 1, 1, 1}, 4));
+        assertArrayEquals(new int[]{3, 1, 1}, WcmpWeights.normalize(new int[]{1000, 1, 1}, 5));
+    }
+
+    @Test
+    public void testRandomWeightsFit() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            final int maxGroupSize = 1 + random.nextInt(64);
+            final int[] weights = new int[1 + random.nextInt(maxGroupSize)];
+            for (int j = 0; j < weights.length; j++) {
+                weights[j] = 1 + random.nextInt(1000);
+            }
+            final int[] normalized = WcmpWeights.normalize(weights, maxGroupSize);
+            final String message = Arrays.toString(weights) + " -> " + Arrays.toString(normalized);
+            assertTrue(message, normalized.length == weights.length);
+            assertTrue(message, Arrays.stream(normalized).allMatch(weight -> weight >= 1));
+            assertTrue(message, Arrays.stream(normalized).sum() <= maxGroupSize);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyBuckets() {
+        WcmpWeights.normalize(new int[]{1, 1, 1}, 2);
+    }
+}